@@ -0,0 +1,87 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.coverage;
+
+import com.uber.jenkins.phabricator.utils.SyntheticWorkload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting line coverage to the Harbormaster format, from the primitive line coverage the parsers produce and
+ * from boxed hit counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CoverageConverterBenchmark {
+
+    private static final int LINES_PER_FILE = 200;
+
+    @Param({"100", "1000", "10000"})
+    public int files;
+
+    private Map<String, LineCoverage> lineCoverage;
+    private Map<String, List<Integer>> boxedCoverage;
+
+    @Setup
+    public void setUp() {
+        SyntheticWorkload workload = new SyntheticWorkload(42, files, LINES_PER_FILE);
+        lineCoverage = new HashMap<String, LineCoverage>();
+        boxedCoverage = new HashMap<String, List<Integer>>();
+        for (int file = 0; file < files; file++) {
+            List<Integer> hits = new ArrayList<Integer>(LINES_PER_FILE);
+            for (int hitCount : workload.lineHits(file)) {
+                hits.add(hitCount < 0 ? null : hitCount);
+            }
+            lineCoverage.put(workload.path(file), LineCoverage.of(hits));
+            boxedCoverage.put(workload.path(file), hits);
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> convert() {
+        return CoverageConverter.convert(lineCoverage);
+    }
+
+    @Benchmark
+    public Map<String, String> convertBoxed() {
+        return CoverageConverter.convert(boxedCoverage);
+    }
+}
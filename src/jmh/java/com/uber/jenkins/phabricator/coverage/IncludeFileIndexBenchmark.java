@@ -0,0 +1,95 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.coverage;
+
+import com.uber.jenkins.phabricator.utils.SyntheticWorkload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the file names of a coverage report against the files changed by a diff, by suffix as for Cobertura
+ * and JaCoCo, and by containment as for the absolute paths of Clover.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IncludeFileIndexBenchmark {
+
+    private static final int COVERAGE_FILES = 40000;
+
+    @Param({"10", "1000", "40000"})
+    public int changedFiles;
+
+    private IncludeFileIndex index;
+    private String[] relativeNames;
+    private String[] absoluteNames;
+
+    @Setup
+    public void setUp() {
+        SyntheticWorkload workload = new SyntheticWorkload(42, COVERAGE_FILES, 0);
+        index = IncludeFileIndex.of(workload.changedFiles(changedFiles));
+
+        relativeNames = new String[COVERAGE_FILES];
+        absoluteNames = new String[COVERAGE_FILES];
+        for (int i = 0; i < COVERAGE_FILES; i++) {
+            String path = workload.path(i);
+            relativeNames[i] = path.substring(SyntheticWorkload.SOURCE_ROOT.length());
+            absoluteNames[i] = SyntheticWorkload.WORKSPACE + path;
+        }
+    }
+
+    @Benchmark
+    public int relativePaths() {
+        int matched = 0;
+        for (String name : relativeNames) {
+            if (index.getRelativePathFromProjectRoot(name) != null) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int containedPaths() {
+        int matched = 0;
+        for (String name : absoluteNames) {
+            if (index.getContainedPathFromProjectRoot(name) != null) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+}
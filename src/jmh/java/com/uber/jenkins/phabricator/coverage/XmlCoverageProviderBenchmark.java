@@ -0,0 +1,97 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.coverage;
+
+import com.uber.jenkins.phabricator.utils.SyntheticWorkload;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a coverage report of each format, either collecting the line coverage of every file, or only of the files
+ * changed by a diff as the notifier does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class XmlCoverageProviderBenchmark {
+
+    private static final int LINES_PER_FILE = 200;
+    // A diff usually touches a handful of files out of the whole report
+    private static final int CHANGED_FILES = 20;
+
+    @Param({"COBERTURA", "CLOVER", "JACOCO"})
+    public SyntheticWorkload.CoverageFormat format;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int lines;
+
+    private File directory;
+    private Set<File> reports;
+    private IncludeFileIndex changedFiles;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("coverage-benchmark").toFile();
+        File report = new File(directory, "coverage.xml");
+        SyntheticWorkload workload = new SyntheticWorkload(42, Math.max(1, lines / LINES_PER_FILE), LINES_PER_FILE);
+        workload.writeCoverage(format, report);
+        reports = Collections.singleton(report);
+        changedFiles = IncludeFileIndex.of(workload.changedFiles(CHANGED_FILES));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public Map<String, LineCoverage> allFiles() {
+        return new XmlCoverageProvider(reports, IncludeFileIndex.of(null)).getFileCoverage();
+    }
+
+    @Benchmark
+    public Map<String, LineCoverage> changedFiles() {
+        return new XmlCoverageProvider(reports, changedFiles).getFileCoverage();
+    }
+}
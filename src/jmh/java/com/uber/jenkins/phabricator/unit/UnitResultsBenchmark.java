@@ -0,0 +1,97 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.unit;
+
+import com.uber.jenkins.phabricator.utils.SyntheticWorkload;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hudson.tasks.junit.TestResult;
+
+/**
+ * Converting JUnit results to unit results, then to Harbormaster messages, and serializing them as they are sent to
+ * conduit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UnitResultsBenchmark {
+
+    @Param({"1000", "10000", "200000"})
+    public int results;
+
+    private File directory;
+    private TestResult testResult;
+    private UnitResults unitResults;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("unit-benchmark").toFile();
+        File junit = new File(directory, "junit.xml");
+        new SyntheticWorkload(42, 1000, 200).writeJUnit(junit, results);
+        testResult = new TestResult();
+        testResult.parse(junit);
+        unitResults = new JUnitTestProvider().convertJUnit(testResult);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public UnitResults convertJUnit() {
+        return new JUnitTestProvider().convertJUnit(testResult);
+    }
+
+    @Benchmark
+    public List<JSONObject> toHarbormaster() {
+        return unitResults.toHarbormaster();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return new JSONObject().element("unit", unitResults.toHarbormaster()).toString();
+    }
+}
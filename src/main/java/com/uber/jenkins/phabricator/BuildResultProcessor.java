@@ -26,6 +26,7 @@ import com.uber.jenkins.phabricator.conduit.HarbormasterClient.MessageType;
 import com.uber.jenkins.phabricator.coverage.CodeCoverageMetrics;
 import com.uber.jenkins.phabricator.coverage.CoverageConverter;
 import com.uber.jenkins.phabricator.coverage.CoverageProvider;
+import com.uber.jenkins.phabricator.coverage.LineCoverage;
 import com.uber.jenkins.phabricator.lint.LintResult;
 import com.uber.jenkins.phabricator.lint.LintResults;
 import com.uber.jenkins.phabricator.tasks.PostCommentTask;
@@ -44,7 +45,6 @@ import net.sf.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.List;
 import java.util.Map;
 
 import hudson.FilePath;
@@ -104,12 +104,25 @@ public class BuildResultProcessor {
      * @return
      */
     public boolean processParentCoverage(UberallsClient uberalls) {
+        return processParentCoverage(uberalls, null);
+    }
+
+    /**
+     * Fetch parent coverage data from Uberalls, if available, using the lookup started when the build was set up
+     *
+     * @param uberalls the client to the Uberalls instance
+     * @param prefetched the lookups started when the build was set up, if any
+     * @return whether the build should pass
+     */
+    public boolean processParentCoverage(UberallsClient uberalls, PhabricatorPrefetchAction prefetched) {
         // First add in info about the change in coverage, if applicable
         boolean passBuild = true;
         if (commenter.hasCoverageAvailable()) {
             if (uberalls.isConfigured()) {
-                passBuild = commenter.processParentCoverage(uberalls.getParentCoverage(diff.getBaseCommit()),
-                        diff.getBaseCommit(), diff.getBranch());
+                CodeCoverageMetrics parentCoverage = prefetched == null
+                        ? uberalls.getParentCoverage(diff.getBaseCommit())
+                        : prefetched.getParentCoverage(diff.getBaseCommit(), uberalls);
+                passBuild = commenter.processParentCoverage(parentCoverage, diff.getBaseCommit(), diff.getBranch());
             } else {
                 logger.info(LOGGING_TAG, "No Uberalls backend configured, skipping...");
             }
@@ -136,15 +149,37 @@ public class BuildResultProcessor {
      * @param commentSize the maximum number of bytes to read from the remote file
      */
     public void processRemoteComment(String commentFile, String commentSize) {
+        addRemoteComment(fetchRemoteComment(commentFile, commentSize));
+    }
+
+    /**
+     * Fetch a remote comment from the build workspace, without adding it to the comment yet
+     *
+     * @param commentFile the path pattern of the file
+     * @param commentSize the maximum number of bytes to read from the remote file
+     * @return the comment, or null if there is none
+     */
+    public String fetchRemoteComment(String commentFile, String commentSize) {
         RemoteFileFetcher commentFetcher = new RemoteFileFetcher(workspace, logger, commentFile, commentSize);
         try {
-            String customComment = commentFetcher.getRemoteFile();
-            commenter.addUserComment(customComment);
+            return commentFetcher.getRemoteFile();
         } catch (InterruptedException e) {
             e.printStackTrace(logger.getStream());
         } catch (IOException e) {
             e.printStackTrace(logger.getStream());
         }
+        return null;
+    }
+
+    /**
+     * Add a comment fetched from the build workspace
+     *
+     * @param customComment the comment, or null if there is none
+     */
+    public void addRemoteComment(String customComment) {
+        if (customComment != null) {
+            commenter.addUserComment(customComment);
+        }
     }
 
     /**
@@ -303,7 +338,7 @@ public class BuildResultProcessor {
             logger.info(LOGGING_TAG, "No coverage provider available.");
             return;
         }
-        Map<String, List<Integer>> lineCoverage = coverageProvider.getLineCoverage();
+        Map<String, LineCoverage> lineCoverage = coverageProvider.getFileCoverage();
         if (lineCoverage == null || lineCoverage.isEmpty()) {
             logger.info(LOGGING_TAG, "No line coverage available to post to Harbormaster.");
             return;
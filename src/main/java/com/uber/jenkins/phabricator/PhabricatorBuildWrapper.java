@@ -26,13 +26,16 @@ import com.uber.jenkins.phabricator.conduit.ConduitAPIException;
 import com.uber.jenkins.phabricator.conduit.Differential;
 import com.uber.jenkins.phabricator.conduit.DifferentialClient;
 import com.uber.jenkins.phabricator.conduit.HarbormasterClient.MessageType;
+import com.uber.jenkins.phabricator.coverage.CodeCoverageMetrics;
 import com.uber.jenkins.phabricator.credentials.ConduitCredentials;
 import com.uber.jenkins.phabricator.tasks.ApplyPatchTask;
 import com.uber.jenkins.phabricator.tasks.SendHarbormasterResultTask;
 import com.uber.jenkins.phabricator.tasks.SendHarbormasterUriTask;
 import com.uber.jenkins.phabricator.tasks.Task;
+import com.uber.jenkins.phabricator.uberalls.UberallsClient;
 import com.uber.jenkins.phabricator.utils.CommonUtils;
 import com.uber.jenkins.phabricator.utils.Logger;
+import com.uber.jenkins.phabricator.utils.RequestThrottle;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -40,6 +43,7 @@ import org.kohsuke.stapler.DataBoundSetter;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import hudson.EnvVars;
 import hudson.FilePath;
@@ -48,6 +52,7 @@ import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Cause;
 import hudson.model.CauseAction;
+import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Job;
 import hudson.model.ParameterValue;
@@ -56,10 +61,12 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.tasks.BuildWrapper;
 import hudson.util.RunList;
+import jenkins.model.Jenkins;
 
 public class PhabricatorBuildWrapper extends BuildWrapper {
 
     private static final String CONDUIT_TAG = "conduit";
+    private static final String UBERALLS_TAG = "uberalls";
     private static final String DIFFERENTIAL_SUMMARY = "PHABRICATOR_DIFFERENTIAL_SUMMARY";
     private static final String DIFFERENTIAL_AUTHOR = "PHABRICATOR_DIFFERENTIAL_AUTHOR";
     private static final String DIFFERENTIAL_BASE_COMMIT = "PHABRICATOR_DIFFERENTIAL_BASE_COMMIT";
@@ -150,9 +157,15 @@ public class PhabricatorBuildWrapper extends BuildWrapper {
         }
         LauncherFactory starter = new LauncherFactory(launcher, environment, listener.getLogger(), arcWorkPath);
 
+        PhabricatorPrefetchAction prefetch = new PhabricatorPrefetchAction();
+        build.addAction(prefetch);
+        PhabricatorTimingAction timings = PhabricatorTimingAction.of(build);
+
         ConduitAPIClient conduitClient;
         try {
-            conduitClient = getConduitClient(build.getParent(), logger);
+            conduitClient = getConduitClient(build.getParent(), logger)
+                    .withResponseCache(prefetch.getConduitResponses())
+                    .withRequestListener(timings.requestListener(PhabricatorTimingAction.CONDUIT_PREFIX));
         } catch (ConduitAPIException e) {
             e.printStackTrace(logger.getStream());
             logger.warn(CONDUIT_TAG, e.getMessage());
@@ -188,6 +201,9 @@ public class PhabricatorBuildWrapper extends BuildWrapper {
             envAdditions.put(DIFFERENTIAL_BASE_COMMIT, diff.getBaseCommit());
             envAdditions.put(DIFFERENTIAL_BRANCH, diff.getBranch());
             envAdditions.put(DIFFERENTIAL_SUMMARY, diff.getCommitMessage());
+
+            prefetch.setParentCoverage(diff.getBaseCommit(),
+                    prefetchParentCoverage(build, environment, logger, diff.getBaseCommit(), timings));
         } catch (ConduitAPIException e) {
             e.printStackTrace(logger.getStream());
             logger.warn(CONDUIT_TAG, "Unable to fetch differential from Conduit API");
@@ -210,10 +226,12 @@ public class PhabricatorBuildWrapper extends BuildWrapper {
 
             final String conduitToken = this.getConduitToken(build.getParent(), logger);
             final String conduitUrl = this.getPhabricatorURL(build.getParent());
+            long start = System.nanoTime();
             Task.Result result = new ApplyPatchTask(
                     logger, starter, baseCommit, diffID, conduitUrl, conduitToken, getArcPath(),
                     createCommit, skipForcedClean, createBranch,
                     patchWithForceFlag, scmType).run();
+            timings.record(PhabricatorTimingAction.ARC_PATCH, System.nanoTime() - start, -1, 1);
 
             if (result != Task.Result.SUCCESS) {
                 logger.warn("arcanist", "Error applying arc patch; got non-zero exit code " + result);
@@ -281,6 +299,30 @@ public class PhabricatorBuildWrapper extends BuildWrapper {
         return this;
     }
 
+    /**
+     * Start looking up the parent coverage for the notifier while the build runs
+     */
+    private Future<CodeCoverageMetrics> prefetchParentCoverage(
+            AbstractBuild<?, ?> build, EnvVars environment, Logger logger, final String baseCommit,
+            PhabricatorTimingAction timings) {
+        PhabricatorNotifier notifier = build.getProject().getPublishersList().get(PhabricatorNotifier.class);
+        if (notifier == null || !notifier.isUberallsEnabled() || CommonUtils.isBlank(baseCommit)) {
+            return null;
+        }
+
+        String gitUrl = environment.get("GIT_URL");
+        if (gitUrl == null) {
+            gitUrl = environment.get("GIT_URL_1");
+        }
+        final UberallsClient uberalls = notifier.getUberallsClient(logger, gitUrl, environment.get("GIT_BRANCH"));
+        if (!uberalls.isConfigured()) {
+            return null;
+        }
+        uberalls.setRequestListener(timings.requestListener(PhabricatorTimingAction.UBERALLS_PREFIX));
+        logger.info(UBERALLS_TAG, "Fetching parent coverage for " + baseCommit + " in the background");
+        return Computer.threadPoolForRemoting.submit(() -> uberalls.getParentCoverage(baseCommit));
+    }
+
     private void addShortText(final AbstractBuild build) {
         build.addAction(PhabricatorPostbuildAction.createShortText("master", null));
     }
@@ -295,7 +337,17 @@ public class PhabricatorBuildWrapper extends BuildWrapper {
         if (credentials == null) {
             throw new ConduitAPIException("No credentials configured for conduit");
         }
-        return new ConduitAPIClient(credentials.getGateway(), getConduitToken(owner, logger));
+        return new ConduitAPIClient(credentials.getGateway(), getConduitToken(owner, logger))
+                .withRequestCompression(credentials.isCompressRequests())
+                .withThrottle(getConduitThrottle(credentials.getGateway()));
+    }
+
+    private RequestThrottle getConduitThrottle(String gateway) {
+        // The limits are configured once for all conduit traffic, on the notifier
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        PhabricatorNotifierDescriptor descriptor = jenkins != null
+                ? jenkins.getDescriptorByType(PhabricatorNotifierDescriptor.class) : null;
+        return descriptor != null ? descriptor.getConduitThrottle(gateway) : null;
     }
 
     private ConduitCredentials getConduitCredentials(Job owner) {
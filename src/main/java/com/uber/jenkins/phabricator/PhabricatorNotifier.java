@@ -27,22 +27,28 @@ import com.uber.jenkins.phabricator.conduit.DifferentialClient;
 import com.uber.jenkins.phabricator.coverage.CodeCoverageMetrics;
 import com.uber.jenkins.phabricator.coverage.CoverageProvider;
 import com.uber.jenkins.phabricator.coverage.CoberturaPluginCoverageProvider;
+import com.uber.jenkins.phabricator.coverage.IncludeFileIndex;
 import com.uber.jenkins.phabricator.coverage.JacocoPluginCoverageProvider;
+import com.uber.jenkins.phabricator.coverage.LineCoverage;
 import com.uber.jenkins.phabricator.coverage.XmlCoverageProvider;
 import com.uber.jenkins.phabricator.credentials.ConduitCredentials;
+import com.uber.jenkins.phabricator.lint.LintResults;
 import com.uber.jenkins.phabricator.provider.InstanceProvider;
 import com.uber.jenkins.phabricator.tasks.NonDifferentialBuildTask;
 import com.uber.jenkins.phabricator.tasks.NonDifferentialHarbormasterTask;
 import com.uber.jenkins.phabricator.tasks.Task;
 import com.uber.jenkins.phabricator.uberalls.UberallsClient;
+import com.uber.jenkins.phabricator.unit.UnitResults;
 import com.uber.jenkins.phabricator.unit.UnitTestProvider;
 import com.uber.jenkins.phabricator.utils.CommonUtils;
 import com.uber.jenkins.phabricator.utils.Logger;
+import com.uber.jenkins.phabricator.utils.TaskGraph;
 
 import hudson.plugins.cobertura.CoberturaBuildAction;
 import hudson.plugins.jacoco.JacocoBuildAction;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -50,12 +56,16 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.model.Computer;
 import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
@@ -76,6 +86,15 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
     private static final String UBERALLS_TAG = "uberalls";
     private static final String COVERAGE_TAG = "coverage";
     private static final String CONDUIT_TAG = "conduit";
+
+    private static final String PARENT_COVERAGE_STAGE = "parent-coverage";
+    private static final String BUILD_RESULT_STAGE = "build-result";
+    private static final String UNIT_STAGE = "unit";
+    private static final String COVERAGE_STAGE = "coverage";
+    private static final String LINT_STAGE = "lint";
+    private static final String FETCH_COMMENT_STAGE = "fetch-comment";
+    private static final String HARBORMASTER_STAGE = "harbormaster";
+    private static final String COMMENT_STAGE = "comment";
     private static final String PHABRICATOR_COVERAGE = "phabricator-coverage";
     // Post a comment on success. Useful for lengthy builds.
     private final boolean commentOnSuccess;
@@ -91,6 +110,7 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
     private final String lintFileSize;
     private final String coverageReportPattern;
     private final boolean sendPartialResults;
+    private boolean parseCoverageOnAgent;
     private transient UberallsClient uberallsClient;
 
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
@@ -153,6 +173,9 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
             }
         }
 
+        PhabricatorTimingAction timings = PhabricatorTimingAction.of(build);
+        uberallsClient.setRequestListener(timings.requestListener(PhabricatorTimingAction.UBERALLS_PREFIX));
+
         CoverageProvider coverageProvider;
 
         // Handle non-differential build invocations. If PHID is present but DIFF_ID is not, it means somebody is doing
@@ -164,7 +187,8 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
                 build.addAction(PhabricatorPostbuildAction.createShortText(branch, null));
             }
 
-            coverageProvider = getCoverageProvider(build, workspace, listener, Collections.emptySet());
+            coverageProvider = getCoverageProvider(build, workspace, listener, IncludeFileIndex.of(null),
+                    timings);
             CodeCoverageMetrics coverageResult = null;
             if (coverageProvider != null) {
                 coverageResult = coverageProvider.getMetrics();
@@ -183,14 +207,24 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
             return;
         }
 
+        PhabricatorPrefetchAction prefetched = build.getAction(PhabricatorPrefetchAction.class);
+        if (prefetched != null) {
+            // Only needed while the build is running, don't keep it in build.xml
+            build.removeAction(prefetched);
+        }
+
         ConduitAPIClient conduitClient;
         try {
-            conduitClient = getConduitClient(build.getParent());
+            conduitClient = getConduitClient(build.getParent())
+                    .withRequestListener(timings.requestListener(PhabricatorTimingAction.CONDUIT_PREFIX));
         } catch (ConduitAPIException e) {
             e.printStackTrace(logger.getStream());
             logger.warn(CONDUIT_TAG, e.getMessage());
             throw new AbortException();
         }
+        if (prefetched != null) {
+            conduitClient = conduitClient.withResponseCache(prefetched.getConduitResponses());
+        }
 
         String whichBuildUrl;
 
@@ -243,9 +277,10 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
             diff.decorate(build, this.getPhabricatorURL(build.getParent()));
         }
 
-        Set<String> includeFiles = diff.getChangedFiles();
+        IncludeFileIndex includeFiles = IncludeFileIndex.forJob(build.getParent().getFullName(),
+                diff.getChangedFiles());
 
-        coverageProvider = getCoverageProvider(build, workspace, listener, includeFiles);
+        coverageProvider = getCoverageProvider(build, workspace, listener, includeFiles, timings);
         CodeCoverageMetrics coverageResult = null;
         if (coverageProvider != null) {
             coverageResult = coverageProvider.getMetrics();
@@ -264,34 +299,66 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
                 coverageCheckSettings
         );
 
-        if (uberallsEnabled) {
-            boolean passBuildOnUberalls = resultProcessor.processParentCoverage(uberallsClient);
-            if (!passBuildOnUberalls) {
-                build.setResult(Result.FAILURE);
+        // Each stage only waits for the stages whose results it needs, and the ones adding to the comment run
+        // one after the other so the comment reads the same as before
+        final CoverageProvider harbormasterCoverage = coverageProvider;
+        final AtomicReference<String> remoteComment = new AtomicReference<String>();
+        final AtomicBoolean sentHarbormaster = new AtomicBoolean();
+        TaskGraph graph = new TaskGraph(Computer.threadPoolForRemoting);
+
+        graph.add(PARENT_COVERAGE_STAGE, () -> {
+            if (uberallsEnabled) {
+                boolean passBuildOnUberalls = resultProcessor.processParentCoverage(uberallsClient, prefetched);
+                if (!passBuildOnUberalls) {
+                    build.setResult(Result.FAILURE);
+                }
             }
-        }
+        });
 
         // Add in comments about the build result
-        resultProcessor.processBuildResult(commentOnSuccess, commentWithConsoleLinkOnFailure);
+        graph.add(BUILD_RESULT_STAGE, () -> resultProcessor.processBuildResult(commentOnSuccess,
+                commentWithConsoleLinkOnFailure), PARENT_COVERAGE_STAGE);
 
         // Process unit tests results to send to Harbormaster
-        resultProcessor.processUnitResults(getUnitProvider(build, listener));
+        graph.add(UNIT_STAGE, () -> {
+            long start = System.nanoTime();
+            resultProcessor.processUnitResults(getUnitProvider(build, listener));
+            UnitResults unitResults = resultProcessor.getUnitResults();
+            timings.record(PhabricatorTimingAction.UNIT_CONVERSION, System.nanoTime() - start, -1,
+                    unitResults == null ? 0 : unitResults.getResults().size());
+        });
 
         // Read coverage data to send to Harbormaster
-        resultProcessor.processCoverage(coverageProvider);
+        graph.add(COVERAGE_STAGE, () -> resultProcessor.processCoverage(harbormasterCoverage));
+
+        // Read lint results to send to Harbormaster
+        graph.add(LINT_STAGE, () -> {
+            if (processLint) {
+                long start = System.nanoTime();
+                resultProcessor.processLintResults(lintFile, lintFileSize);
+                LintResults lintResults = resultProcessor.getLintResults();
+                timings.record(PhabricatorTimingAction.LINT_INGESTION, System.nanoTime() - start, -1,
+                        lintResults == null ? 0 : lintResults.getResults().size());
+            }
+        });
 
-        if (processLint) {
-            // Read lint results to send to Harbormaster
-            resultProcessor.processLintResults(lintFile, lintFileSize);
-        }
+        graph.add(FETCH_COMMENT_STAGE, () -> remoteComment.set(resultProcessor.fetchRemoteComment(commentFile,
+                commentSize)));
+
+        graph.add(HARBORMASTER_STAGE, () -> sentHarbormaster.set(
+                resultProcessor.processHarbormaster(this.sendPartialResults)),
+                BUILD_RESULT_STAGE, UNIT_STAGE, COVERAGE_STAGE, LINT_STAGE);
+
+        graph.add(COMMENT_STAGE, () -> resultProcessor.addRemoteComment(remoteComment.get()),
+                HARBORMASTER_STAGE, FETCH_COMMENT_STAGE);
+
+        graph.await();
 
         // Fail the build if we can't report to Harbormaster
-        if (!resultProcessor.processHarbormaster(this.sendPartialResults)) {
+        if (!sentHarbormaster.get()) {
             throw new AbortException();
         }
 
-        resultProcessor.processRemoteComment(commentFile, commentSize);
-
         resultProcessor.sendComment(commentWithConsoleLinkOnFailure);
     }
 
@@ -300,13 +367,13 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
             return uberallsClient;
         }
 
-        setUberallsClient(new UberallsClient(
+        // Builds of the same job may run concurrently, so each one gets its own view of the shared connections
+        return new UberallsClient(
                 getDescriptor().getUberallsURL(),
                 logger,
                 gitUrl,
                 branch
-        ));
-        return uberallsClient;
+        );
     }
 
     // Just for testing
@@ -319,7 +386,9 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
         if (credentials == null) {
             throw new ConduitAPIException("No credentials configured for conduit");
         }
-        return new ConduitAPIClient(credentials.getGateway(), credentials.getToken().getPlainText());
+        return new ConduitAPIClient(credentials.getGateway(), credentials.getToken().getPlainText())
+                .withRequestCompression(credentials.isCompressRequests())
+                .withThrottle(getDescriptor().getConduitThrottle(credentials.getGateway()));
     }
 
     /**
@@ -327,12 +396,14 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
      *
      * @param build The current build
      * @param listener The build listener
+     * @param timings Where to record how long copying and parsing the reports took
      * @return The current coverage, if any
      */
     private CoverageProvider getCoverageProvider(
             Run<?, ?> build, FilePath workspace,
             TaskListener listener,
-            Set<String> includeFiles) {
+            IncludeFileIndex includeFiles,
+            PhabricatorTimingAction timings) {
         Result buildResult;
         if (build.getResult() == null) {
             buildResult = Result.SUCCESS;
@@ -343,7 +414,12 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
             return null;
         }
 
-        copyCoverageToJenkinsMaster(build, workspace, listener);
+        // Reports are parsed where they were written, unless they have to be copied here
+        boolean parseOnAgent = parseCoverageOnAgent && workspace != null;
+        String reportPattern = getCoverageReportPatternOrDefault();
+        if (!parseOnAgent) {
+            copyCoverageToJenkinsMaster(build, workspace, listener, timings);
+        }
 
         CoverageProvider coverageProvider = null;
         Logger logger = new Logger(listener.getLogger());
@@ -354,7 +430,11 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
             CoberturaBuildAction coberturaBuildAction = build.getAction(CoberturaBuildAction.class);
             if (coberturaBuildAction != null) { // Choose only a single coverage provider
                 logger.info(UBERALLS_TAG, "Using coverage metrics from Cobertura Jenkins Plugin");
-                coverageProvider = new CoberturaPluginCoverageProvider(getCoverageReports(build), includeFiles, coberturaBuildAction);
+                coverageProvider = parseOnAgent
+                        ? new CoberturaPluginCoverageProvider(workspace, reportPattern, includeFiles,
+                                coberturaBuildAction)
+                        : new CoberturaPluginCoverageProvider(getCoverageReports(build), includeFiles,
+                                coberturaBuildAction);
             }
         }
 
@@ -362,16 +442,30 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
             JacocoBuildAction jacocoBuildAction = build.getAction(JacocoBuildAction.class);
             if (jacocoBuildAction != null) {
                 logger.info(UBERALLS_TAG, "Using coverage metrics from Jacoco Jenkins Plugin");
-                coverageProvider = new JacocoPluginCoverageProvider(getCoverageReports(build), includeFiles, jacocoBuildAction);
+                coverageProvider = parseOnAgent
+                        ? new JacocoPluginCoverageProvider(workspace, reportPattern, includeFiles, jacocoBuildAction)
+                        : new JacocoPluginCoverageProvider(getCoverageReports(build), includeFiles,
+                                jacocoBuildAction);
             }
         }
 
         if (coverageProvider == null) {
-            logger.info(UBERALLS_TAG, "Trying to obtain coverage metrics by parsing coverage xml files");
-            coverageProvider = new XmlCoverageProvider(getCoverageReports(build), includeFiles);
+            if (parseOnAgent) {
+                logger.info(UBERALLS_TAG, "Trying to obtain coverage metrics by parsing coverage xml files on the "
+                        + "agent");
+                coverageProvider = new XmlCoverageProvider(workspace, reportPattern, includeFiles);
+            } else {
+                logger.info(UBERALLS_TAG, "Trying to obtain coverage metrics by parsing coverage xml files");
+                coverageProvider = new XmlCoverageProvider(getCoverageReports(build), includeFiles);
+            }
         }
 
+        long start = System.nanoTime();
         coverageProvider.computeCoverageIfNeeded();
+        Map<String, LineCoverage> fileCoverage = coverageProvider.hasCoverage()
+                ? coverageProvider.getFileCoverage() : null;
+        timings.record(PhabricatorTimingAction.COVERAGE_PARSE, System.nanoTime() - start, -1,
+                fileCoverage == null ? 0 : fileCoverage.size());
         cleanupCoverageFilesOnJenkinsMaster(build);
 
         if (coverageProvider.hasCoverage()) {
@@ -382,29 +476,37 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
         }
     }
 
-    private void copyCoverageToJenkinsMaster(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+    private void copyCoverageToJenkinsMaster(Run<?, ?> build, FilePath workspace, TaskListener listener,
+            PhabricatorTimingAction timings) {
         Logger logger = new Logger(listener.getLogger());
         final File buildDir = build.getRootDir();
         FilePath buildTarget = new FilePath(buildDir);
 
-        String finalCoverageReportPattern = coverageReportPattern != null ? coverageReportPattern :
-                DEFAULT_XML_COVERAGE_REPORT_PATTERN;
+        String finalCoverageReportPattern = getCoverageReportPatternOrDefault();
 
         if (workspace != null) {
+            long start = System.nanoTime();
+            long bytes = 0;
+            int i = 0;
             try {
-                int i = 0;
                 for (FilePath report : workspace.list(finalCoverageReportPattern)) {
                     final FilePath targetPath = new FilePath(buildTarget, PHABRICATOR_COVERAGE + (i == 0 ? "" : i) + ".xml");
                     report.copyTo(targetPath);
+                    bytes += targetPath.length();
                     i++;
                 }
             } catch (InterruptedException | IOException e) {
                 e.printStackTrace();
                 logger.warn(COVERAGE_TAG, "Unable to copy coverage to " + buildTarget);
             }
+            timings.record(PhabricatorTimingAction.COVERAGE_COPY, System.nanoTime() - start, bytes, i);
         }
     }
 
+    private String getCoverageReportPatternOrDefault() {
+        return coverageReportPattern != null ? coverageReportPattern : DEFAULT_XML_COVERAGE_REPORT_PATTERN;
+    }
+
     private void cleanupCoverageFilesOnJenkinsMaster(Run<?, ?> build) {
         for (File report : getCoverageReports(build)) {
             report.delete();
@@ -507,6 +609,16 @@ public class PhabricatorNotifier extends Notifier implements SimpleBuildStep {
         return sendPartialResults;
     }
 
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean isParseCoverageOnAgent() {
+        return parseCoverageOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setParseCoverageOnAgent(boolean parseCoverageOnAgent) {
+        this.parseCoverageOnAgent = parseCoverageOnAgent;
+    }
+
     private ConduitCredentials getConduitCredentials(Job owner) {
         return getDescriptor().getCredentials(owner);
     }
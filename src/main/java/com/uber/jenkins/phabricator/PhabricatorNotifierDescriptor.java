@@ -22,6 +22,7 @@ package com.uber.jenkins.phabricator;
 
 import com.uber.jenkins.phabricator.credentials.ConduitCredentials;
 import com.uber.jenkins.phabricator.utils.CommonUtils;
+import com.uber.jenkins.phabricator.utils.RequestThrottle;
 
 import net.sf.json.JSONObject;
 
@@ -29,6 +30,10 @@ import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
 import hudson.Extension;
 import hudson.model.AbstractProject;
 import hudson.model.Job;
@@ -49,9 +54,17 @@ import jenkins.model.Jenkins;
 @Extension
 public final class PhabricatorNotifierDescriptor extends BuildStepDescriptor<Publisher> {
 
+    private static final int DEFAULT_CONDUIT_QUEUE_TIMEOUT = 60;
+
     private String credentialsID;
     private String uberallsURL;
     private boolean isBlueOceanEnabled;
+    private double conduitRequestsPerSecond;
+    private int conduitMaxInFlight;
+    private int conduitQueueTimeout;
+    // Shared by all builds calling the same conduit, and rebuilt when the limits change
+    private final transient ConcurrentMap<String, RequestThrottle> conduitThrottles =
+            new ConcurrentHashMap<String, RequestThrottle>();
 
     public PhabricatorNotifierDescriptor() {
         super(PhabricatorNotifier.class);
@@ -75,6 +88,7 @@ public final class PhabricatorNotifierDescriptor extends BuildStepDescriptor<Pub
         // To persist global configuration information,
         // set that to properties and call save().
         req.bindJSON(this, formData.getJSONObject("uberalls"));
+        conduitThrottles.clear();
         save();
         return super.configure(req, formData);
     }
@@ -117,4 +131,45 @@ public final class PhabricatorNotifierDescriptor extends BuildStepDescriptor<Pub
     public void setIsBlueOceanEnabled(boolean value) {
         isBlueOceanEnabled = value;
     }
+
+    public double getConduitRequestsPerSecond() {
+        return conduitRequestsPerSecond;
+    }
+
+    public void setConduitRequestsPerSecond(double value) {
+        conduitRequestsPerSecond = value;
+    }
+
+    public int getConduitMaxInFlight() {
+        return conduitMaxInFlight;
+    }
+
+    public void setConduitMaxInFlight(int value) {
+        conduitMaxInFlight = value;
+    }
+
+    public int getConduitQueueTimeout() {
+        if (conduitQueueTimeout > 0) {
+            return conduitQueueTimeout;
+        }
+        return DEFAULT_CONDUIT_QUEUE_TIMEOUT;
+    }
+
+    public void setConduitQueueTimeout(int value) {
+        conduitQueueTimeout = value;
+    }
+
+    /**
+     * Get the throttle that all conduit calls to a Phabricator go through
+     *
+     * @param gateway The conduit URL
+     * @return the throttle, or null if no limits are configured
+     */
+    public RequestThrottle getConduitThrottle(String gateway) {
+        if (gateway == null || conduitRequestsPerSecond <= 0 && conduitMaxInFlight <= 0) {
+            return null;
+        }
+        return conduitThrottles.computeIfAbsent(gateway, url -> new RequestThrottle(conduitRequestsPerSecond,
+                conduitMaxInFlight, TimeUnit.SECONDS.toMillis(getConduitQueueTimeout())));
+    }
 }
@@ -0,0 +1,83 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator;
+
+import com.uber.jenkins.phabricator.conduit.ConduitResponseCache;
+import com.uber.jenkins.phabricator.coverage.CodeCoverageMetrics;
+import com.uber.jenkins.phabricator.uberalls.UberallsClient;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Conduit responses and uberalls lookups of a build, shared by {@link PhabricatorBuildWrapper} and
+ * {@link PhabricatorNotifier} so the build doesn't make the same calls twice. The parent coverage is looked up while
+ * the build runs, so the notifier doesn't have to wait for it once the build is done.
+ */
+public class PhabricatorPrefetchAction extends InvisibleAction {
+
+    private final transient ConduitResponseCache conduitResponses = new ConduitResponseCache();
+    private transient volatile String baseCommit;
+    private transient volatile Future<CodeCoverageMetrics> parentCoverage;
+
+    /**
+     * @return the responses of the conduit calls made by the build so far
+     */
+    public ConduitResponseCache getConduitResponses() {
+        return conduitResponses;
+    }
+
+    /**
+     * Set the lookup of the parent coverage started for the build
+     *
+     * @param baseCommit The parent commit
+     * @param parentCoverage The lookup of its coverage
+     */
+    public void setParentCoverage(String baseCommit, Future<CodeCoverageMetrics> parentCoverage) {
+        this.baseCommit = baseCommit;
+        this.parentCoverage = parentCoverage;
+    }
+
+    /**
+     * Get the coverage of the parent commit, waiting for the lookup to finish, or looking it up now if it wasn't
+     * started or failed
+     *
+     * @param baseCommit The parent commit
+     * @param uberalls The client to look up the coverage with if it wasn't prefetched
+     * @return the parent coverage, or null if uberalls has none
+     */
+    public CodeCoverageMetrics getParentCoverage(String baseCommit, UberallsClient uberalls) {
+        Future<CodeCoverageMetrics> parentCoverage = this.parentCoverage;
+        if (parentCoverage != null && this.baseCommit != null && this.baseCommit.equals(baseCommit)) {
+            try {
+                return parentCoverage.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                // Fall through and try again
+            }
+        }
+        return uberalls.getParentCoverage(baseCommit);
+    }
+}
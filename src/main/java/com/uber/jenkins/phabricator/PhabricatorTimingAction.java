@@ -0,0 +1,135 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator;
+
+import com.uber.jenkins.phabricator.utils.RequestListener;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.util.CopyOnWriteList;
+
+/**
+ * How long each phase of {@link PhabricatorBuildWrapper} and {@link PhabricatorNotifier} took for a build, with the
+ * bytes and items it handled. It is kept with the build and exported, so slow phases can be found across builds
+ * through the REST API, e.g. {@code api/json?tree=actions[phases[*]]}.
+ */
+@ExportedBean
+public class PhabricatorTimingAction extends InvisibleAction {
+
+    public static final String ARC_PATCH = "arc-patch";
+    public static final String COVERAGE_COPY = "coverage-copy";
+    public static final String COVERAGE_PARSE = "coverage-parse";
+    public static final String UNIT_CONVERSION = "junit-conversion";
+    public static final String LINT_INGESTION = "lint-ingestion";
+    public static final String CONDUIT_PREFIX = "conduit:";
+    public static final String UBERALLS_PREFIX = "uberalls:";
+
+    // Phases of the notifier run in parallel, so they are added from several threads
+    private final CopyOnWriteList<Phase> phases = new CopyOnWriteList<Phase>();
+
+    /**
+     * Get the timings of a build, adding them to the build if it has none yet
+     *
+     * @param build The build
+     * @return the timings of the build
+     */
+    public static PhabricatorTimingAction of(Run<?, ?> build) {
+        synchronized (build) {
+            PhabricatorTimingAction timings = build.getAction(PhabricatorTimingAction.class);
+            if (timings == null) {
+                timings = new PhabricatorTimingAction();
+                build.addAction(timings);
+            }
+            return timings;
+        }
+    }
+
+    /**
+     * Record a phase
+     *
+     * @param name The name of the phase
+     * @param nanos How long the phase took
+     * @param bytes The bytes read or sent by the phase, or -1 if unknown
+     * @param items The number of items, e.g. files or results, the phase handled
+     */
+    public void record(String name, long nanos, long bytes, long items) {
+        phases.add(new Phase(name, TimeUnit.NANOSECONDS.toMillis(nanos), bytes, items));
+    }
+
+    /**
+     * @param prefix What the phase of each request is named after, followed by the operation
+     * @return a listener that records each request as a phase
+     */
+    public RequestListener requestListener(final String prefix) {
+        return (operation, nanos, requestBytes, responseBytes, failed) -> record(prefix + operation, nanos,
+                Math.max(requestBytes, 0) + Math.max(responseBytes, 0), 1);
+    }
+
+    /**
+     * @return the phases recorded so far, in the order they finished
+     */
+    @Exported
+    public List<Phase> getPhases() {
+        return phases.getView();
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Phase {
+
+        private final String name;
+        private final long durationMillis;
+        private final long bytes;
+        private final long items;
+
+        Phase(String name, long durationMillis, long bytes, long items) {
+            this.name = name;
+            this.durationMillis = durationMillis;
+            this.bytes = bytes;
+            this.items = items;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Exported
+        public long getItems() {
+            return items;
+        }
+    }
+}
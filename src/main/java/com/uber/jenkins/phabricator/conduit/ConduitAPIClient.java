@@ -20,42 +20,173 @@
 
 package com.uber.jenkins.phabricator.conduit;
 
+import com.uber.jenkins.phabricator.utils.CircuitBreaker;
+import com.uber.jenkins.phabricator.utils.HttpClientPool;
+import com.uber.jenkins.phabricator.utils.RequestListener;
+import com.uber.jenkins.phabricator.utils.RequestMetrics;
+import com.uber.jenkins.phabricator.utils.RequestThrottle;
+import com.uber.jenkins.phabricator.utils.StreamingJsonFilter;
+
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import net.sf.json.groovy.JsonSlurper;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpResponse;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpStatus;
-import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import hudson.util.Secret;
 
 public class ConduitAPIClient {
 
     private static final String API_TOKEN_KEY = "token";
     private static final String CONDUIT_METADATA_KEY = "__conduit__";
+    private static final HttpClientPool CLIENTS = new HttpClientPool("conduit");
+    static final int MAX_IN_FLIGHT = Integer.getInteger(ConduitAPIClient.class.getName() + ".maxInFlight", 8);
+    static final int MAX_QUEUED_ASYNC = Integer.getInteger(ConduitAPIClient.class.getName() + ".maxQueuedAsync", 256);
+
+    /**
+     * Parts of responses that nothing reads, skipped while the response is read instead of being parsed. The hunks of
+     * large diffs can be tens of megabytes, and only the paths of the changes are used.
+     */
+    private static final Pattern QUERYDIFFS_SKIPPED = Pattern.compile("result\\.[^.]+\\.changes\\.\\*\\."
+            + "(?!currentPath$)[^.]+");
+    private static final Map<String, Predicate<String>> SKIPPED_FIELDS = Collections.singletonMap(
+            "differential.querydiffs", path -> QUERYDIFFS_SKIPPED.matcher(path).matches());
+
+    /**
+     * Request bodies at least this big are compressed, when compression is enabled and the server accepts it
+     */
+    static final int COMPRESSION_THRESHOLD = Integer.getInteger(ConduitAPIClient.class.getName()
+            + ".compressionThreshold", 32 * 1024);
+    private static final String CAPABILITIES_ACTION = "conduit.getcapabilities";
+    private static final String GZIP = "gzip";
+    // Returned by conduits older than conduit.getcapabilities
+    private static final String UNKNOWN_METHOD_ERROR = "ERR-CONDUIT-CALL";
+    // Whether each conduit accepts gzip request bodies, kept once a conduit has given a definite answer
+    private static final ConcurrentMap<String, Boolean> ACCEPTS_GZIP = new ConcurrentHashMap<String, Boolean>();
+
+    static final int MAX_ATTEMPTS = Integer.getInteger(ConduitAPIClient.class.getName() + ".maxAttempts", 4);
+    private static final long RETRY_DELAY_MS = Long.getLong(ConduitAPIClient.class.getName() + ".retryDelay", 500L);
+    private static final long MAX_RETRY_DELAY_MS = Long.getLong(ConduitAPIClient.class.getName() + ".maxRetryDelay",
+            TimeUnit.SECONDS.toMillis(10));
+    static final int BREAKER_FAILURE_THRESHOLD = Integer.getInteger(ConduitAPIClient.class.getName()
+            + ".breakerFailureThreshold", 5);
+    private static final long BREAKER_OPEN_MS = Long.getLong(ConduitAPIClient.class.getName() + ".breakerOpenTime",
+            TimeUnit.SECONDS.toMillis(30));
+    private static final Set<String> RETRYABLE_ACTIONS = new HashSet<String>(Arrays.asList(
+            "differential.querydiffs", "differential.getcommitmessage", "harbormaster.createartifact",
+            "harbormaster.sendmessage", CAPABILITIES_ACTION));
+    // One breaker per conduit URL, shared by all builds talking to it
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<String, CircuitBreaker>();
 
     private final String conduitURL;
     private final String conduitToken;
+    private final ConduitResponseCache responseCache;
+    private final boolean compressRequests;
+    private final RequestThrottle throttle;
+    private final RequestListener listener;
 
     public ConduitAPIClient(String conduitURL, String conduitToken) {
+        this(conduitURL, conduitToken, null, false, null, null);
+    }
+
+    private ConduitAPIClient(String conduitURL, String conduitToken, ConduitResponseCache responseCache,
+            boolean compressRequests, RequestThrottle throttle, RequestListener listener) {
         this.conduitURL = conduitURL;
         this.conduitToken = conduitToken;
+        this.responseCache = responseCache;
+        this.compressRequests = compressRequests;
+        this.throttle = throttle;
+        this.listener = listener;
+    }
+
+    /**
+     * Get a client to the same conduit that reuses the responses of reads and idempotent writes already made
+     *
+     * @param responseCache The responses of the calls made so far, usually by the same build
+     * @return the new client
+     */
+    public ConduitAPIClient withResponseCache(ConduitResponseCache responseCache) {
+        return new ConduitAPIClient(conduitURL, conduitToken, responseCache, compressRequests, throttle,
+                listener);
+    }
+
+    /**
+     * Get a client to the same conduit that gzips large request bodies, if the server says it accepts them
+     *
+     * @param compressRequests Whether to compress large request bodies
+     * @return the new client
+     */
+    public ConduitAPIClient withRequestCompression(boolean compressRequests) {
+        return new ConduitAPIClient(conduitURL, conduitToken, responseCache, compressRequests, throttle,
+                listener);
+    }
+
+    /**
+     * Get a client to the same conduit whose requests wait for their turn in a throttle shared with other clients
+     *
+     * @param throttle The throttle in front of the conduit, or null to send requests right away
+     * @return the new client
+     */
+    public ConduitAPIClient withThrottle(RequestThrottle throttle) {
+        return new ConduitAPIClient(conduitURL, conduitToken, responseCache, compressRequests, throttle,
+                listener);
+    }
+
+    /**
+     * Get a client to the same conduit that also tells a listener about each request it sends
+     *
+     * @param listener The listener, or null to only record the global metrics
+     * @return the new client
+     */
+    public ConduitAPIClient withRequestListener(RequestListener listener) {
+        return new ConduitAPIClient(conduitURL, conduitToken, responseCache, compressRequests, throttle,
+                listener);
     }
 
     /**
@@ -68,24 +199,302 @@ public class ConduitAPIClient {
      * @throws ConduitAPIException If there was an error calling conduit
      */
     public JSONObject perform(String action, JSONObject params) throws IOException, ConduitAPIException {
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        if (responseCache == null || !ConduitResponseCache.isMemoized(action)) {
+            return execute(action, params);
+        }
+
+        String key = ConduitResponseCache.key(action, params);
+        JSONObject response = responseCache.get(key);
+        if (response == null) {
+            response = execute(action, params);
+            responseCache.put(key, response);
+        }
+        return response;
+    }
+
+    /**
+     * Durably queue a write to conduit to be made in the background, retrying until conduit answers. Used when
+     * Phabricator can't be reached, so the build doesn't have to wait on it or fail because of it.
+     *
+     * @param action Name of the API call
+     * @param params The data to send
+     * @return whether the call was queued, false when there is no outbox, e.g. outside of Jenkins
+     * @throws IOException If the call could not be written to the outbox
+     */
+    public boolean performLater(String action, JSONObject params) throws IOException {
+        ConduitOutbox outbox = ConduitOutbox.get();
+        if (outbox == null) {
+            return false;
+        }
+        outbox.add(conduitURL, Secret.fromString(conduitToken).getEncryptedValue(), compressRequests, action, params);
+        return true;
+    }
+
+    /**
+     * Call the conduit API of Phabricator without blocking the caller. Calls from all builds to the same conduit share
+     * a bounded number of in-flight requests, and wait for their turn when the limit is reached. Once too many calls
+     * are waiting, new ones fail right away with a 503.
+     *
+     * @param action Name of the API call
+     * @param params The data to send to Harbormaster
+     * @return The result, failed with an IOException or ConduitAPIException if the call failed
+     */
+    public CompletableFuture<JSONObject> performAsync(final String action, final JSONObject params) {
+        return callAsync(() -> perform(action, params));
+    }
+
+    /**
+     * Make one or more calls to this conduit on the threads used by {@link #performAsync(String, JSONObject)}
+     *
+     * @param call Makes the calls
+     * @return The result of the call, failed with an IOException or ConduitAPIException if the call failed
+     */
+    CompletableFuture<JSONObject> callAsync(final HarbormasterCoalescer.Message call) {
+        final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+        try {
+            AsyncPool.get(conduitURL).execute(() -> {
+                try {
+                    result.complete(call.send());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new ConduitAPIException(String.format(
+                    "Too many calls waiting for conduit at %s", conduitURL), HttpStatus.SC_SERVICE_UNAVAILABLE));
+        }
+        return result;
+    }
+
+    /**
+     * Send a request, retrying transient failures with a growing, randomized delay. Calls fail right away while the
+     * conduit's circuit breaker is open, so builds don't pile up waiting on a Phabricator that is down.
+     */
+    private JSONObject execute(String action, JSONObject params) throws IOException, ConduitAPIException {
         HttpUriRequest request = createRequest(action, params);
+        // Decided before taking a turn in the throttle, since asking the server what it accepts takes a turn too
+        if (compressRequests && !CAPABILITIES_ACTION.equals(action)) {
+            compress((HttpEntityEnclosingRequest) request);
+        }
 
-        HttpResponse response;
+        CircuitBreaker breaker = BREAKERS.computeIfAbsent(conduitURL,
+                url -> new CircuitBreaker(BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MS));
+        for (int attempt = 1; ; attempt++) {
+            // Checked before queueing in the throttle too, so calls to a failing conduit don't wait for a turn first
+            if (breaker.isOpen()) {
+                throw breakerOpen(action);
+            }
+            acquireTurn(action);
+
+            Exception failure;
+            try {
+                if (!breaker.allowRequest()) {
+                    throw breakerOpen(action);
+                }
+                try {
+                    JSONObject response = send(action, request);
+                    breaker.recordSuccess();
+                    return response;
+                } catch (IOException e) {
+                    failure = e;
+                } catch (ConduitAPIException e) {
+                    if (!e.isTransient()) {
+                        breaker.recordSuccess();
+                        throw e;
+                    }
+                    failure = e;
+                } catch (RuntimeException e) {
+                    breaker.recordSuccess();
+                    throw e;
+                }
+            } finally {
+                releaseTurn();
+            }
+
+            breaker.recordFailure();
+            if (attempt >= MAX_ATTEMPTS || !isRetryable(action, failure)) {
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                throw (ConduitAPIException) failure;
+            }
+            sleep(getRetryDelay(attempt));
+        }
+    }
+
+    private ConduitAPIException breakerOpen(String action) {
+        return new ConduitAPIException(String.format("Not calling %s, conduit at %s has been failing", action,
+                conduitURL), HttpStatus.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Wait for a turn in the throttle, if there is one. Each attempt takes its own turn, so waiting to retry doesn't
+     * hold on to one.
+     */
+    private void acquireTurn(String action) throws IOException, ConduitAPIException {
+        if (throttle == null) {
+            return;
+        }
+        try {
+            if (!throttle.acquire()) {
+                throw new ConduitAPIException(String.format("Timed out waiting for a turn to call %s on %s", action,
+                        conduitURL), HttpStatus.SC_SERVICE_UNAVAILABLE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to call conduit");
+        }
+    }
+
+    private void releaseTurn() {
+        if (throttle != null) {
+            throttle.release();
+        }
+    }
+
+    /**
+     * Whether the server can't have acted on a call that failed this way, because the call was never sent or was
+     * turned away: a connection failure, 503 or 429, an open circuit breaker or no turn in the throttle
+     *
+     * @param failure The exception the call failed with
+     * @return whether the call can be made again without risking doing it twice
+     */
+    public static boolean isUnprocessed(Exception failure) {
+        if (failure instanceof ConduitAPIException) {
+            int code = ((ConduitAPIException) failure).code;
+            return code == HttpStatus.SC_SERVICE_UNAVAILABLE || code == 429;
+        }
+        return failure instanceof ConnectException || failure instanceof ConnectTimeoutException
+                || failure instanceof UnknownHostException;
+    }
+
+    /**
+     * Reads and idempotent writes can be made again after any transient failure. Other writes, like comments, only
+     * when the server can't have acted on the request, so they aren't done twice.
+     */
+    static boolean isRepeatable(String action, Exception failure) {
+        return RETRYABLE_ACTIONS.contains(action) || isUnprocessed(failure);
+    }
+
+    /**
+     * Retrying right away won't help a host that can't be resolved
+     */
+    private static boolean isRetryable(String action, Exception failure) {
+        return !(failure instanceof UnknownHostException) && isRepeatable(action, failure);
+    }
+
+    /**
+     * Exponential backoff with full jitter, so builds failing together don't all retry together
+     */
+    static long getRetryDelay(int attempt) {
+        long ceiling = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
         try {
-            response = client.execute(request);
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a conduit call");
+        }
+    }
+
+    /**
+     * Send a request once. Its body is repeatable, so each attempt sends the same request.
+     */
+    private JSONObject send(String action, HttpUriRequest request) throws IOException, ConduitAPIException {
+        CloseableHttpClient client = CLIENTS.getClient(URIUtils.extractHost(request.getURI()));
+
+        long start = System.nanoTime();
+        long requestBytes = ((HttpEntityEnclosingRequest) request).getEntity().getContentLength();
+        CountingInputStream responseBody = null;
+        boolean failed = true;
+        try (CloseableHttpResponse response = client.execute(request)) {
+            HttpEntity entity = response.getEntity();
+            try {
+                responseBody = new CountingInputStream(entity.getContent());
+                Integer responseCode = response.getStatusLine().getStatusCode();
+                if (responseCode != HttpStatus.SC_OK) {
+                    throw new ConduitAPIException(IOUtils.toString(responseBody, Charset.defaultCharset()),
+                            responseCode);
+                }
+
+                JSONObject result;
+                JsonSlurper jsonParser = new JsonSlurper();
+                Predicate<String> skipped = SKIPPED_FIELDS.get(action);
+                if (skipped == null) {
+                    result = (JSONObject) jsonParser.parse(responseBody);
+                } else {
+                    result = (JSONObject) jsonParser.parseText(StreamingJsonFilter.filter(
+                            new InputStreamReader(responseBody, StandardCharsets.UTF_8), skipped));
+                }
+                failed = false;
+                return result;
+            } finally {
+                // Read whatever is left so the connection goes back to the pool
+                EntityUtils.consumeQuietly(entity);
+            }
         } catch (ClientProtocolException e) {
             throw new ConduitAPIException(e.getMessage());
+        } finally {
+            long nanos = System.nanoTime() - start;
+            long responseBytes = responseBody != null ? responseBody.getByteCount() : -1;
+            RequestMetrics.CONDUIT.record(action, nanos, requestBytes, responseBytes, failed);
+            if (listener != null) {
+                listener.requestCompleted(action, nanos, requestBytes, responseBytes, failed);
+            }
         }
+    }
 
-        InputStream responseBody = response.getEntity().getContent();
-        Integer responseCode = response.getStatusLine().getStatusCode();
-        if (responseCode != HttpStatus.SC_OK) {
-            throw new ConduitAPIException(IOUtils.toString(responseBody, Charset.defaultCharset()), responseCode);
+    /**
+     * Replace a large request body with its gzipped version, if the server accepts it. The compressed body is small
+     * enough to keep in memory, which lets it be sent with a content length.
+     */
+    private void compress(HttpEntityEnclosingRequest request) throws IOException {
+        HttpEntity entity = request.getEntity();
+        if (entity.getContentLength() < COMPRESSION_THRESHOLD || !acceptsGzip()) {
+            return;
         }
 
-        JsonSlurper jsonParser = new JsonSlurper();
-        return (JSONObject) jsonParser.parse(responseBody);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            entity.writeTo(out);
+        }
+        ByteArrayEntity compressedEntity = new ByteArrayEntity(compressed.toByteArray());
+        compressedEntity.setContentType(entity.getContentType());
+        compressedEntity.setContentEncoding(GZIP);
+        request.setEntity(compressedEntity);
+    }
+
+    /**
+     * Ask the server whether it accepts gzip request bodies. Only a definite answer is kept for the conduit: the
+     * encodings it lists, or an error saying it has no such method. When the server can't answer, e.g. because it is
+     * unavailable, this request isn't compressed and the next large one asks again.
+     */
+    private boolean acceptsGzip() {
+        Boolean accepts = ACCEPTS_GZIP.get(conduitURL);
+        if (accepts != null) {
+            return accepts;
+        }
+
+        JSONObject response;
+        try {
+            response = execute(CAPABILITIES_ACTION, new JSONObject());
+        } catch (IOException | ConduitAPIException e) {
+            return false;
+        }
+        JSONObject result = response.optJSONObject("result");
+        if (result != null && !result.isNullObject()) {
+            JSONArray input = result.optJSONArray("input");
+            accepts = input != null && input.contains(GZIP);
+        } else if (UNKNOWN_METHOD_ERROR.equals(response.optString("error_code"))) {
+            accepts = false;
+        } else {
+            return false;
+        }
+        ACCEPTS_GZIP.put(conduitURL, accepts);
+        return accepts;
     }
 
     /**
@@ -112,14 +521,38 @@ public class ConduitAPIClient {
 
         JSONObject conduitParams = new JSONObject();
         conduitParams.put(API_TOKEN_KEY, conduitToken);
-        params.put(CONDUIT_METADATA_KEY, conduitParams);
-
-        List<NameValuePair> formData = new ArrayList<NameValuePair>();
-        formData.add(new BasicNameValuePair("params", params.toString()));
 
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formData, "UTF-8");
-        post.setEntity(entity);
+        // Harbormaster payloads can be large, so the JSON is encoded as it is sent instead of all at once. The token
+        // is only added to the posted form, so params never hold it and can be cached or queued as they are
+        post.setEntity(new JsonFormEntity("params", params, CONDUIT_METADATA_KEY, conduitParams));
 
         return post;
     }
+
+    /**
+     * Threads running asynchronous conduit calls, one pool per conduit URL shared by all builds, so a slow
+     * Phabricator doesn't hold up calls to the others. The number of threads bounds the requests in flight, so it
+     * should stay below the connections allowed per gateway, and idle threads go away.
+     */
+    private static class AsyncPool {
+
+        private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+        private static final ConcurrentMap<String, ExecutorService> EXECUTORS =
+                new ConcurrentHashMap<String, ExecutorService>();
+
+        static ExecutorService get(String conduitURL) {
+            return EXECUTORS.computeIfAbsent(conduitURL, url -> createExecutor());
+        }
+
+        private static ExecutorService createExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_IN_FLIGHT, MAX_IN_FLIGHT, 60L,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_ASYNC), runnable -> {
+                        Thread thread = new Thread(runnable, "phabricator-conduit-" + THREAD_COUNT.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
 }
@@ -20,10 +20,21 @@
 
 package com.uber.jenkins.phabricator.conduit;
 
+import org.apache.http.HttpStatus;
+
 import java.lang.Integer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 public class ConduitAPIException extends Exception {
 
+    // Conduit was down, overloaded or too slow to take the request. Other errors won't go away by trying again
+    private static final Set<Integer> TRANSIENT_STATUS_CODES = Collections.unmodifiableSet(new HashSet<Integer>(
+            Arrays.asList(HttpStatus.SC_REQUEST_TIMEOUT, 429, HttpStatus.SC_BAD_GATEWAY,
+                    HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_GATEWAY_TIMEOUT)));
+
     public final int code;
 
     public ConduitAPIException(String message) {
@@ -35,4 +46,14 @@ public class ConduitAPIException extends Exception {
         super(Integer.toString(code) + " " + message);
         this.code = code;
     }
+
+    /**
+     * Whether the call may work if it is made again later, because conduit was down or overloaded. This is the one
+     * definition used both to retry calls right away and to queue them in the outbox.
+     *
+     * @return whether the failure is transient
+     */
+    public boolean isTransient() {
+        return TRANSIENT_STATUS_CODES.contains(code);
+    }
 }
@@ -0,0 +1,188 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.conduit;
+
+import com.uber.jenkins.phabricator.utils.DurableQueue;
+
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+
+/**
+ * Outbox for conduit writes that couldn't be made while Phabricator was unavailable. Calls are appended to a journal
+ * under JENKINS_HOME so the build can finish, then sent in the background, retrying with backoff until conduit answers
+ * or the call has waited for a day. Calls still in the journal when Jenkins restarts are sent once it is back up.
+ */
+public final class ConduitOutbox {
+
+    static final String JOURNAL_NAME = "phabricator-conduit-outbox.log";
+
+    private static final Logger LOGGER = Logger.getLogger(ConduitOutbox.class.getName());
+    private static final int BATCH_SIZE = Integer.getInteger(ConduitOutbox.class.getName() + ".batchSize", 20);
+    private static final long MAX_RETRY_DELAY_MS = Long.getLong(ConduitOutbox.class.getName() + ".maxRetryDelay",
+            TimeUnit.MINUTES.toMillis(10));
+    private static final int MAX_ATTEMPTS = Integer.getInteger(ConduitOutbox.class.getName() + ".maxAttempts", 100);
+    private static final long MAX_AGE_MS = Long.getLong(ConduitOutbox.class.getName() + ".maxAge",
+            TimeUnit.DAYS.toMillis(1));
+    private static final String GATEWAY_KEY = "gateway";
+    // Encrypted with the controller's key, like the credentials it came from
+    private static final String TOKEN_KEY = "token";
+    private static final String COMPRESS_KEY = "compress";
+    private static final String ACTION_KEY = "action";
+    private static final String PARAMS_KEY = "params";
+
+    private static ConduitOutbox instance;
+
+    private final Sender sender;
+    private final DurableQueue queue;
+
+    interface Sender {
+        JSONObject send(String gateway, String token, boolean compress, String action, JSONObject params)
+                throws IOException, ConduitAPIException;
+    }
+
+    ConduitOutbox(File journal, Sender sender, ScheduledExecutorService executor) {
+        this.sender = sender;
+        this.queue = new DurableQueue("conduit outbox", journal, GATEWAY_KEY, BATCH_SIZE, MAX_RETRY_DELAY_MS,
+                MAX_ATTEMPTS, MAX_AGE_MS, this::send, executor);
+    }
+
+    /**
+     * @return the outbox of this controller, or null when not running in Jenkins
+     */
+    static synchronized ConduitOutbox get() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        File journal = new File(jenkins.getRootDir(), JOURNAL_NAME);
+        if (instance == null || !instance.queue.getJournal().equals(journal)) {
+            instance = new ConduitOutbox(journal,
+                    (gateway, token, compress, action, params) -> new ConduitAPIClient(gateway,
+                            Secret.toString(Secret.fromString(token))).withRequestCompression(compress)
+                            .perform(action, params),
+                    Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "phabricator-conduit-outbox");
+                        thread.setDaemon(true);
+                        return thread;
+                    }));
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Send the conduit calls that were still queued when Jenkins was stopped
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replay() {
+        get();
+    }
+
+    /**
+     * Durably queue a conduit call to be made in the background
+     *
+     * @param gateway The conduit URL
+     * @param token The conduit token, encrypted
+     * @param compress Whether to compress large requests
+     * @param action Name of the API call
+     * @param params The data to send
+     * @throws IOException if the call could not be written to the journal
+     */
+    void add(String gateway, String token, boolean compress, String action, JSONObject params) throws IOException {
+        JSONObject entry = new JSONObject();
+        entry.put(GATEWAY_KEY, gateway);
+        entry.put(TOKEN_KEY, token);
+        entry.put(COMPRESS_KEY, compress);
+        entry.put(ACTION_KEY, action);
+        entry.put(PARAMS_KEY, params);
+        queue.add(entry);
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    void load() {
+        queue.load();
+    }
+
+    /**
+     * Make the oldest queued calls to each gateway, in order, stopping at the first one that should be retried
+     */
+    void drain() {
+        queue.drain();
+    }
+
+    /**
+     * @return false if the call should be retried later
+     */
+    private boolean send(JSONObject entry) {
+        String gateway = entry.getString(GATEWAY_KEY);
+        String action = entry.getString(ACTION_KEY);
+        try {
+            JSONObject response = sender.send(gateway, entry.getString(TOKEN_KEY), entry.optBoolean(COMPRESS_KEY),
+                    action, entry.getJSONObject(PARAMS_KEY));
+            Object error = response.get("error_info");
+            if (error != null && !(error instanceof JSONNull)) {
+                LOGGER.warning("Dropping " + action + " rejected by conduit at " + gateway + ": " + error);
+            }
+            return true;
+        } catch (ConduitAPIException e) {
+            if (!e.isTransient()) {
+                LOGGER.log(Level.WARNING, "Dropping " + action + " rejected by conduit at " + gateway, e);
+                return true;
+            }
+            if (!ConduitAPIClient.isRepeatable(action, e)) {
+                return dropUnknownOutcome(gateway, action, e);
+            }
+            LOGGER.info("Failed to call " + action + " on conduit at " + gateway + ", will retry: " + e.getMessage());
+        } catch (IOException e) {
+            if (!ConduitAPIClient.isRepeatable(action, e)) {
+                return dropUnknownOutcome(gateway, action, e);
+            }
+            LOGGER.log(Level.INFO, "Failed to call " + action + " on conduit at " + gateway + ", will retry", e);
+        }
+        return false;
+    }
+
+    /**
+     * A write that isn't safe to repeat may have been made before it failed, e.g. on a read timeout, so it is given
+     * up on instead of risking making it twice
+     */
+    private static boolean dropUnknownOutcome(String gateway, String action, Exception e) {
+        LOGGER.log(Level.WARNING, "Dropping " + action + " to conduit at " + gateway
+                + ", which may or may not have been made", e);
+        return true;
+    }
+}
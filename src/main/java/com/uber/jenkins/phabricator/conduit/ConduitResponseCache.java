@@ -0,0 +1,80 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.conduit;
+
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Responses of the conduit calls made by a single build, keyed by method and params, so that the build wrapper and
+ * notifier only fetch each piece of data, or make each idempotent write, once.
+ */
+public class ConduitResponseCache {
+
+    private static final Set<String> MEMOIZED_METHODS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "differential.querydiffs",
+            "differential.getcommitmessage",
+            "harbormaster.createartifact"
+    )));
+
+    private final ConcurrentMap<String, JSONObject> responses = new ConcurrentHashMap<String, JSONObject>();
+
+    /**
+     * @param action The name of the conduit method
+     * @return whether the method is a read, or a write that can be safely skipped when it was made already
+     */
+    static boolean isMemoized(String action) {
+        return MEMOIZED_METHODS.contains(action);
+    }
+
+    /**
+     * @param action The name of the conduit method
+     * @param params The params of the call, before the conduit token is added
+     * @return the key to store the response under
+     */
+    static String key(String action, JSONObject params) {
+        return action + '\n' + params.toString();
+    }
+
+    JSONObject get(String key) {
+        return responses.get(key);
+    }
+
+    /**
+     * Remember the response to a call, unless conduit returned an error
+     */
+    void put(String key, JSONObject response) {
+        if (response != null && isNull(response.opt("error_code")) && isNull(response.opt("error_info"))) {
+            responses.put(key, response);
+        }
+    }
+
+    private static boolean isNull(Object value) {
+        return value == null || value instanceof JSONNull;
+    }
+}
@@ -29,6 +29,8 @@ import net.sf.json.JSONObject;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * DifferentialClient handles all interaction with conduit/arc for differentials
@@ -56,13 +58,31 @@ public class DifferentialClient {
      */
     public JSONObject postComment(String revisionID, String message, boolean silent, String action) throws IOException,
             ConduitAPIException {
+        return this.callConduit("differential.createcomment", getCommentParams(revisionID, message, silent, action));
+    }
+
+    /**
+     * Durably queue a comment to be posted in the background, once conduit can be reached
+     *
+     * @param revisionID the revision ID (e.g. "D1234" without the "D")
+     * @param message the content of the comment
+     * @param silent whether or not to trigger an email
+     * @param action phabricator comment action, e.g. 'resign', 'reject', 'none'
+     * @return whether the comment was queued, false when there is no outbox
+     * @throws IOException if the comment could not be written to the outbox
+     */
+    public boolean queueComment(String revisionID, String message, boolean silent, String action) throws IOException {
+        return conduit.performLater("differential.createcomment",
+                getCommentParams(revisionID, message, silent, action));
+    }
+
+    private static JSONObject getCommentParams(String revisionID, String message, boolean silent, String action) {
         JSONObject params = new JSONObject();
         params.element("revision_id", revisionID)
                 .element("action", action)
                 .element("message", message)
                 .element("silent", silent);
-
-        return this.callConduit("differential.createcomment", params);
+        return params;
     }
 
     /**
@@ -73,8 +93,30 @@ public class DifferentialClient {
      * @throws ConduitAPIException if any error is experienced talking to Conduit
      */
     public JSONObject fetchDiff() throws IOException, ConduitAPIException {
-        JSONObject params = new JSONObject().element("ids", new String[] {diffID});
-        JSONObject query = this.callConduit("differential.querydiffs", params);
+        return getDiff(this.callConduit("differential.querydiffs", getFetchDiffParams()));
+    }
+
+    /**
+     * Fetch a differential from Conduit without blocking the caller
+     *
+     * @return the Conduit API response, failed with an IOException or ConduitAPIException on error
+     */
+    public CompletableFuture<JSONObject> fetchDiffAsync() {
+        return this.callConduitAsync("differential.querydiffs", getFetchDiffParams())
+                .thenApply(query -> {
+                    try {
+                        return getDiff(query);
+                    } catch (ConduitAPIException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    private JSONObject getFetchDiffParams() {
+        return new JSONObject().element("ids", new String[] {diffID});
+    }
+
+    private JSONObject getDiff(JSONObject query) throws ConduitAPIException {
         JSONObject response;
         try {
             response = query.getJSONObject("result");
@@ -114,6 +156,43 @@ public class DifferentialClient {
         return new HarbormasterClient(conduit).sendHarbormasterMessage(phid, messageType, unitResults, coverage, lintResults);
     }
 
+    /**
+     * Durably queue a sendHarbormasterMessage build status to be sent in the background, once conduit can be reached
+     *
+     * @param phid Phabricator object ID
+     * @param messageType type of message to send; either 'pass', 'fail' or 'work'
+     * @param unitResults the results from the unit tests
+     * @param coverage the results from the coverage provider
+     * @param lintResults the results from the lint provider
+     * @return whether the message was queued, false when there is no outbox
+     * @throws IOException if the message could not be written to the outbox
+     */
+    public boolean queueHarbormasterMessage(
+            String phid, MessageType messageType, UnitResults unitResults,
+            Map<String, String> coverage,
+            LintResults lintResults) throws IOException {
+        return new HarbormasterClient(conduit).queueHarbormasterMessage(phid, messageType, unitResults, coverage,
+                lintResults);
+    }
+
+    /**
+     * Sets a sendHarbormasterMessage build status without blocking the caller
+     *
+     * @param phid Phabricator object ID
+     * @param messageType type of message to send; either 'pass', 'fail' or 'work'
+     * @param unitResults the results from the unit tests
+     * @param coverage the results from the coverage provider
+     * @param lintResults the results from the lint provider
+     * @return the Conduit API response, failed with an IOException or ConduitAPIException on error
+     */
+    public CompletableFuture<JSONObject> sendHarbormasterMessageAsync(
+            String phid, MessageType messageType, UnitResults unitResults,
+            Map<String, String> coverage,
+            LintResults lintResults) {
+        return new HarbormasterClient(conduit).sendHarbormasterMessageAsync(phid, messageType, unitResults, coverage,
+                lintResults);
+    }
+
     /**
      * Uploads a uri as an 'artifact' for Harbormaster to display
      *
@@ -127,6 +206,17 @@ public class DifferentialClient {
         return new HarbormasterClient(conduit).sendHarbormasterUri(phid, buildUri);
     }
 
+    /**
+     * Uploads a uri as an 'artifact' for Harbormaster to display without blocking the caller
+     *
+     * @param phid Phabricator object ID
+     * @param buildUri Uri to display, presumably the jenkins builds
+     * @return the Conduit API response, failed with an IOException or ConduitAPIException on error
+     */
+    public CompletableFuture<JSONObject> sendHarbormasterUriAsync(String phid, String buildUri) {
+        return new HarbormasterClient(conduit).sendHarbormasterUriAsync(phid, buildUri);
+    }
+
     /**
      * Post a comment on the differential
      *
@@ -140,6 +230,17 @@ public class DifferentialClient {
         return postComment(revisionID, message, true, "none");
     }
 
+    /**
+     * Post a comment on the differential without blocking the caller
+     *
+     * @param revisionID the revision ID (e.g. "D1234" without the "D")
+     * @param message the string message to post
+     * @return the Conduit API response, failed with an IOException or ConduitAPIException on error
+     */
+    public CompletableFuture<JSONObject> postCommentAsync(String revisionID, String message) {
+        return callConduitAsync("differential.createcomment", getCommentParams(revisionID, message, true, "none"));
+    }
+
     /**
      * Fetch the commit message for the revision. This isn't available on the diff, so it requires a separate query.
      *
@@ -161,7 +262,25 @@ public class DifferentialClient {
         return query.getString("result");
     }
 
+    /**
+     * Fetch the commit message for the revision without blocking the caller
+     *
+     * @param revisionID The ID of the revision, e.g. for "D123" this would be "123"
+     * @return A \n-separated string of the commit message, failed with an IOException or ConduitAPIException on error
+     */
+    public CompletableFuture<String> getCommitMessageAsync(String revisionID) {
+        if (revisionID == null) {
+            return CompletableFuture.completedFuture("");
+        }
+        JSONObject params = new JSONObject().element("revision_id", revisionID);
+        return callConduitAsync("differential.getcommitmessage", params).thenApply(query -> query.getString("result"));
+    }
+
     protected JSONObject callConduit(String methodName, JSONObject params) throws ConduitAPIException, IOException {
         return conduit.perform(methodName, params);
     }
+
+    protected CompletableFuture<JSONObject> callConduitAsync(String methodName, JSONObject params) {
+        return conduit.performAsync(methodName, params);
+    }
 }
@@ -1,14 +1,16 @@
 package com.uber.jenkins.phabricator.conduit;
 
+import com.uber.jenkins.phabricator.lint.LintResult;
 import com.uber.jenkins.phabricator.lint.LintResults;
+import com.uber.jenkins.phabricator.unit.UnitResult;
 import com.uber.jenkins.phabricator.unit.UnitResults;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class HarbormasterClient {
 
@@ -28,7 +30,9 @@ public class HarbormasterClient {
     }
 
     /**
-     * Sets a sendHarbormasterMessage build status
+     * Sets a sendHarbormasterMessage build status. Messages to the same build target are sent one at a time, and a
+     * 'work' message without results still waiting behind another one is dropped when a newer message for the target
+     * comes in.
      *
      * @param phid Phabricator object ID
      * @param messageType type of message to send; either 'pass', 'fail' or 'work'
@@ -45,17 +49,86 @@ public class HarbormasterClient {
             UnitResults unitResults,
             Map<String, String> coverage,
             LintResults lintResults) throws ConduitAPIException, IOException {
+        final JSONObject params = getMessageParams(phid, messageType, unitResults, coverage, lintResults);
+        return HarbormasterCoalescer.INSTANCE.send(phid, HarbormasterCoalescer.isSupersedable(params),
+                () -> conduit.perform("harbormaster.sendmessage", params));
+    }
+
+    /**
+     * How many bytes some JSON adds to the body of a sendHarbormasterMessage request, which is form-encoded, so
+     * results can be split into requests of a given size
+     *
+     * @param json The JSON text of a result
+     * @return the size of the encoded result
+     */
+    public static long getEncodedSize(String json) {
+        return JsonFormEntity.getEncodedLength(json);
+    }
+
+    /**
+     * Durably queue a sendHarbormasterMessage build status to be sent in the background, once conduit can be reached
+     *
+     * @param phid Phabricator object ID
+     * @param messageType type of message to send; either 'pass', 'fail' or 'work'
+     * @param unitResults the results from the unit tests
+     * @param coverage the results from the coverage provider
+     * @param lintResults the results from the lint provider
+     * @return whether the message was queued, false when there is no outbox
+     * @throws IOException if the message could not be written to the outbox
+     */
+    public boolean queueHarbormasterMessage(
+            String phid,
+            MessageType messageType,
+            UnitResults unitResults,
+            Map<String, String> coverage,
+            LintResults lintResults) throws IOException {
+        return conduit.performLater("harbormaster.sendmessage",
+                getMessageParams(phid, messageType, unitResults, coverage, lintResults));
+    }
+
+    /**
+     * Sets a sendHarbormasterMessage build status without blocking the caller. The message waits for its turn
+     * behind the other messages to the same build target, like with
+     * {@link #sendHarbormasterMessage(String, MessageType, UnitResults, Map, LintResults)}.
+     *
+     * @param phid Phabricator object ID
+     * @param messageType type of message to send; either 'pass', 'fail' or 'work'
+     * @param unitResults the results from the unit tests
+     * @param coverage the results from the coverage provider
+     * @param lintResults the results from the lint provider
+     * @return the Conduit API response, failed with an IOException or ConduitAPIException on error
+     */
+    public CompletableFuture<JSONObject> sendHarbormasterMessageAsync(
+            String phid,
+            MessageType messageType,
+            UnitResults unitResults,
+            Map<String, String> coverage,
+            LintResults lintResults) {
+        return conduit.callAsync(() -> sendHarbormasterMessage(phid, messageType, unitResults, coverage,
+                lintResults));
+    }
 
-        List<JSONObject> unit = new ArrayList<JSONObject>();
+    private JSONObject getMessageParams(
+            String phid,
+            MessageType messageType,
+            UnitResults unitResults,
+            Map<String, String> coverage,
+            LintResults lintResults) {
+        // Convert one result at a time instead of building a separate list of all of them first
+        JSONArray unit = new JSONArray();
 
         if (unitResults != null) {
-            unit.addAll(unitResults.toHarbormaster());
+            for (UnitResult result : unitResults.getResults()) {
+                unit.add(result.toHarbormaster());
+            }
         }
 
-        List<JSONObject> lint = new ArrayList<JSONObject>();
+        JSONArray lint = new JSONArray();
 
         if (lintResults != null) {
-            lint.addAll(lintResults.toHarbormaster());
+            for (LintResult result : lintResults.getResults()) {
+                lint.add(result.toHarbormaster());
+            }
         }
 
         if (coverage != null) {
@@ -78,7 +151,7 @@ public class HarbormasterClient {
             params.element("lint", lint);
         }
 
-        return conduit.perform("harbormaster.sendmessage", params);
+        return params;
     }
 
     /**
@@ -91,6 +164,21 @@ public class HarbormasterClient {
      * @throws ConduitAPIException if any error is experienced talking to Conduit
      */
     public JSONObject sendHarbormasterUri(String phid, String buildUri) throws ConduitAPIException, IOException {
+        return conduit.perform("harbormaster.createartifact", getUriParams(phid, buildUri));
+    }
+
+    /**
+     * Uploads a uri as an 'artifact' for Harbormaster to display without blocking the caller
+     *
+     * @param phid Phabricator object ID
+     * @param buildUri Uri to display, presumably the jenkins builds
+     * @return the Conduit API response, failed with an IOException or ConduitAPIException on error
+     */
+    public CompletableFuture<JSONObject> sendHarbormasterUriAsync(String phid, String buildUri) {
+        return conduit.performAsync("harbormaster.createartifact", getUriParams(phid, buildUri));
+    }
+
+    private JSONObject getUriParams(String phid, String buildUri) {
         JSONObject artifactData = new JSONObject();
         artifactData = artifactData.element("uri", buildUri)
                 .element("name", "Jenkins")
@@ -101,7 +189,6 @@ public class HarbormasterClient {
                 .element("artifactKey", "jenkins.uri")
                 .element("artifactType", "uri")
                 .element("artifactData", artifactData);
-
-        return conduit.perform("harbormaster.createartifact", params);
+        return params;
     }
 }
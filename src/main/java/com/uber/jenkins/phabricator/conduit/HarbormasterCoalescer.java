@@ -0,0 +1,175 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.conduit;
+
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends the Harbormaster messages of each build target one at a time, in order. A 'work' message without results only
+ * reports that the build is still going, so one still waiting for its turn is dropped once a newer message for the
+ * same target is queued behind it. Bursts of status updates then cost one conduit call, while every message with unit,
+ * lint or coverage results, which Harbormaster adds up across messages, and every 'pass' and 'fail' message is still
+ * delivered.
+ */
+final class HarbormasterCoalescer {
+
+    static final HarbormasterCoalescer INSTANCE = new HarbormasterCoalescer();
+
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+
+    interface Message {
+        JSONObject send() throws IOException, ConduitAPIException;
+    }
+
+    /**
+     * @param params The parameters of a harbormaster.sendmessage call
+     * @return whether the message may be dropped in favor of a newer one: a 'work' message without results
+     */
+    static boolean isSupersedable(JSONObject params) {
+        return HarbormasterClient.MessageType.work.name().equals(params.optString("type"))
+                && !params.has("unit") && !params.has("lint");
+    }
+
+    /**
+     * Send a message once the messages queued before it for the same target have been sent
+     *
+     * @param phid The build target
+     * @param supersedable Whether the message may be dropped in favor of a newer one
+     * @param message Sends the message
+     * @return the response to the message, or an empty response if a newer message superseded it
+     * @throws IOException If there was a problem sending the message, or the wait was interrupted
+     * @throws ConduitAPIException If there was an error calling conduit
+     */
+    JSONObject send(String phid, boolean supersedable, Message message) throws IOException, ConduitAPIException {
+        Target target = acquire(phid);
+        try {
+            Entry entry = new Entry(supersedable);
+            if (!target.awaitTurn(entry)) {
+                return new JSONObject();
+            }
+            try {
+                return message.send();
+            } finally {
+                target.done();
+            }
+        } finally {
+            release(phid, target);
+        }
+    }
+
+    private Target acquire(String phid) {
+        synchronized (targets) {
+            Target target = targets.get(phid);
+            if (target == null) {
+                target = new Target();
+                targets.put(phid, target);
+            }
+            target.users++;
+            return target;
+        }
+    }
+
+    private void release(String phid, Target target) {
+        synchronized (targets) {
+            if (--target.users == 0) {
+                targets.remove(phid);
+            }
+        }
+    }
+
+    /**
+     * Number of messages waiting for their turn for a build target, for tests
+     */
+    int waiting(String phid) {
+        Target target;
+        synchronized (targets) {
+            target = targets.get(phid);
+        }
+        if (target == null) {
+            return 0;
+        }
+        synchronized (target) {
+            return target.waiting.size();
+        }
+    }
+
+    private static final class Entry {
+
+        private final boolean supersedable;
+        private boolean superseded;
+
+        Entry(boolean supersedable) {
+            this.supersedable = supersedable;
+        }
+    }
+
+    private static final class Target {
+
+        private final Deque<Entry> waiting = new ArrayDeque<Entry>();
+        private boolean inFlight;
+        // Guarded by the targets map
+        private int users;
+
+        /**
+         * Queue the entry and wait until it is at the front and nothing else is being sent
+         *
+         * @return true when it is the entry's turn, false if a newer message superseded it
+         */
+        synchronized boolean awaitTurn(Entry entry) throws InterruptedIOException {
+            Entry last = waiting.peekLast();
+            if (last != null && last.supersedable) {
+                waiting.removeLast();
+                last.superseded = true;
+                notifyAll();
+            }
+            waiting.addLast(entry);
+
+            while (inFlight || waiting.peekFirst() != entry) {
+                if (entry.superseded) {
+                    return false;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    waiting.remove(entry);
+                    notifyAll();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to send a Harbormaster message");
+                }
+            }
+            waiting.removeFirst();
+            inFlight = true;
+            return true;
+        }
+
+        synchronized void done() {
+            inFlight = false;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.conduit;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import org.apache.http.Consts;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A URL-encoded form with a single field holding a JSON document, encoded as it is written to the connection.
+ * Unlike {@link org.apache.http.client.entity.UrlEncodedFormEntity}, neither the JSON text nor its encoded form is
+ * ever held in memory as a whole, only one value of the document at a time.
+ */
+final class JsonFormEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String name;
+    private final JSON json;
+    private final String memberName;
+    private final JSON memberValue;
+    private long contentLength = -1;
+
+    /**
+     * @param name The name of the form field
+     * @param json The JSON value of the form field, which must not change while the entity is in use
+     */
+    JsonFormEntity(String name, JSON json) {
+        this(name, json, null, null);
+    }
+
+    /**
+     * Send an object with one more member than it holds, without adding the member to the caller's object
+     *
+     * @param name The name of the form field
+     * @param json The JSON object of the form field, which must not change while the entity is in use
+     * @param memberName The name of the member to write last, replacing any member of the object with that name
+     * @param memberValue The value of the extra member
+     */
+    JsonFormEntity(String name, JSONObject json, String memberName, JSON memberValue) {
+        this(name, (JSON) json, memberName, memberValue);
+    }
+
+    private JsonFormEntity(String name, JSON json, String memberName, JSON memberValue) {
+        this.name = name;
+        this.json = json;
+        this.memberName = memberName;
+        this.memberValue = memberValue;
+        setContentType(ContentType.APPLICATION_FORM_URLENCODED.withCharset(Consts.UTF_8).toString());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * Count the bytes of the form without keeping them, so the request isn't sent chunked
+     */
+    @Override
+    public long getContentLength() {
+        if (contentLength < 0) {
+            CountingOutputStream counter = new CountingOutputStream();
+            try {
+                writeTo(counter);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            contentLength = counter.count;
+        }
+        return contentLength;
+    }
+
+    /**
+     * Only meant for tests and logging, since it holds the whole form in memory
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        FormEncoder encoder = new FormEncoder(out);
+        encoder.append(name);
+        encoder.appendRaw('=');
+        if (memberName == null) {
+            appendJson(encoder, json);
+        } else {
+            appendObject(encoder, (JSONObject) json, memberName, memberValue);
+        }
+        encoder.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Write a value the same way {@link JSONObject#toString()} does, one value at a time
+     */
+    private static void appendJson(FormEncoder encoder, Object value) throws IOException {
+        if (value instanceof JSONObject && !((JSONObject) value).isNullObject()) {
+            appendObject(encoder, (JSONObject) value, null, null);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            encoder.append("[");
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    encoder.append(",");
+                }
+                appendJson(encoder, array.get(i));
+            }
+            encoder.append("]");
+        } else {
+            encoder.append(JSONUtils.valueToString(value));
+        }
+    }
+
+    /**
+     * Write an object member by member, followed by the extra member if there is one
+     */
+    private static void appendObject(FormEncoder encoder, JSONObject object, String extraName, Object extraValue)
+            throws IOException {
+        encoder.append("{");
+        boolean first = true;
+        for (Object key : object.keySet()) {
+            if (key.toString().equals(extraName)) {
+                continue;
+            }
+            if (!first) {
+                encoder.append(",");
+            }
+            first = false;
+            appendMember(encoder, key.toString(), object.get(key.toString()));
+        }
+        if (extraName != null) {
+            if (!first) {
+                encoder.append(",");
+            }
+            appendMember(encoder, extraName, extraValue);
+        }
+        encoder.append("}");
+    }
+
+    private static void appendMember(FormEncoder encoder, String key, Object value) throws IOException {
+        encoder.append(JSONUtils.quote(key));
+        encoder.append(":");
+        appendJson(encoder, value);
+    }
+
+    /**
+     * Count the bytes text takes up once form-encoded, without encoding it
+     *
+     * @param text The text to encode
+     * @return the length of the encoded text
+     */
+    static long getEncodedLength(String text) {
+        long length = 0;
+        for (byte b : text.getBytes(Consts.UTF_8)) {
+            int c = b & 0xff;
+            length += isUnreserved(c) || c == ' ' ? 1 : 3;
+        }
+        return length;
+    }
+
+    private static boolean isUnreserved(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '*';
+    }
+
+    /**
+     * Encodes text the same way {@link org.apache.http.client.utils.URLEncodedUtils} does for form fields
+     */
+    private static final class FormEncoder {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+
+        FormEncoder(OutputStream out) {
+            this.out = out;
+        }
+
+        void append(String text) throws IOException {
+            for (byte b : text.getBytes(Consts.UTF_8)) {
+                int c = b & 0xff;
+                if (isUnreserved(c)) {
+                    appendRaw(c);
+                } else if (c == ' ') {
+                    appendRaw('+');
+                } else {
+                    appendRaw('%');
+                    appendRaw(HEX[c >> 4]);
+                    appendRaw(HEX[c & 0xf]);
+                }
+            }
+        }
+
+        void appendRaw(int c) throws IOException {
+            if (position == buffer.length) {
+                flush();
+            }
+            buffer[position++] = (byte) c;
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright (c) 2015 Uber
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.uber.jenkins.phabricator.coverage;
+
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Parses the coverage reports of a workspace on the node that holds it, and returns only the counters and the line
+ * coverage of the included files
+ */
+class AgentCoverageParser extends MasterToSlaveFileCallable<XmlCoverageProvider.ReportCoverage> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String coverageReportPattern;
+    private final Set<String> includeFiles;
+
+    AgentCoverageParser(String coverageReportPattern, Set<String> includeFiles) {
+        this.coverageReportPattern = coverageReportPattern;
+        this.includeFiles = new HashSet<>(includeFiles);
+    }
+
+    @Override
+    public XmlCoverageProvider.ReportCoverage invoke(File workspace, VirtualChannel channel) throws IOException,
+            InterruptedException {
+        Set<File> reports = new HashSet<>();
+        for (FilePath report : new FilePath(workspace).list(coverageReportPattern)) {
+            reports.add(new File(report.getRemote()));
+        }
+
+        try {
+            return new XmlCoverageProvider(reports, IncludeFileIndex.of(includeFiles)).parseReports();
+        } catch (SAXException | XMLStreamException e) {
+            throw new IOException("Unable to parse coverage reports in " + workspace, e);
+        }
+    }
+}
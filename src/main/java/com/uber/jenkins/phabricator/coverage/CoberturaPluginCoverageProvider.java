@@ -24,6 +24,7 @@ import java.io.File;
 import java.util.Set;
 
 import com.google.common.annotations.VisibleForTesting;
+import hudson.FilePath;
 import hudson.plugins.cobertura.CoberturaBuildAction;
 import hudson.plugins.cobertura.Ratio;
 import hudson.plugins.cobertura.targets.CoverageMetric;
@@ -36,11 +37,18 @@ public class CoberturaPluginCoverageProvider extends XmlCoverageProvider {
 
     private final CoberturaBuildAction buildAction;
 
-    public CoberturaPluginCoverageProvider(Set<File> coverageReports, Set<String> includeFiles, CoberturaBuildAction buildAction) {
+    public CoberturaPluginCoverageProvider(Set<File> coverageReports, IncludeFileIndex includeFiles, CoberturaBuildAction buildAction) {
         super(coverageReports, includeFiles);
         this.buildAction = buildAction;
     }
 
+    public CoberturaPluginCoverageProvider(
+            FilePath workspace, String coverageReportPattern, IncludeFileIndex includeFiles,
+            CoberturaBuildAction buildAction) {
+        super(workspace, coverageReportPattern, includeFiles);
+        this.buildAction = buildAction;
+    }
+
     @Override
     protected void computeMetrics() {
         CoverageResult coverageResult = buildAction.getResult();
@@ -45,9 +45,9 @@ public final class CoverageConverter {
      *
      * @return The Harbormaster-formatted coverage
      */
-    public static Map<String, String> convert(Map<String, List<Integer>> lineCoverage) {
+    public static Map<String, String> convert(Map<String, ? extends List<Integer>> lineCoverage) {
         Map<String, String> results = new HashMap<String, String>();
-        for (Map.Entry<String, List<Integer>> entry : lineCoverage.entrySet()) {
+        for (Map.Entry<String, ? extends List<Integer>> entry : lineCoverage.entrySet()) {
             results.put(entry.getKey(), convertFileCoverage(entry.getValue()));
         }
 
@@ -55,9 +55,21 @@ public final class CoverageConverter {
     }
 
     private static String convertFileCoverage(List<Integer> lineCoverage) {
+        if (lineCoverage instanceof LineCoverage) {
+            return convertFileCoverage((LineCoverage) lineCoverage);
+        }
         return lineCoverage
                 .stream()
                 .map(i -> i != null ? (i == 0 ? "U" : "C") : "N")
                 .collect(Collectors.joining());
     }
+
+    private static String convertFileCoverage(LineCoverage lineCoverage) {
+        char[] lines = new char[lineCoverage.size()];
+        for (int i = 0; i < lines.length; i++) {
+            int hitCount = lineCoverage.getHitCount(i);
+            lines[i] = hitCount == LineCoverage.NOT_EXECUTABLE ? 'N' : (hitCount == 0 ? 'U' : 'C');
+        }
+        return new String(lines);
+    }
 }
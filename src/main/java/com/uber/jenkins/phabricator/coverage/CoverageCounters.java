@@ -0,0 +1,79 @@
+// Copyright (c) 2015 Uber
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.uber.jenkins.phabricator.coverage;
+
+import java.io.Serializable;
+
+/**
+ * Aggregate coverage counters collected while parsing coverage reports
+ */
+class CoverageCounters implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    Float lineCoveragePercentOverride = 0.0f;
+    Float branchCoveragePercentOverride = 0.0f;
+    final CoverageCounter pkg = new CoverageCounter();
+    final CoverageCounter cls = new CoverageCounter();
+    final CoverageCounter method = new CoverageCounter();
+    final CoverageCounter line = new CoverageCounter();
+    final CoverageCounter branch = new CoverageCounter();
+    final CoverageCounter file = new CoverageCounter();
+
+    /**
+     * Add the counters collected from another report to these counters
+     *
+     * @param other the counters to add
+     */
+    void merge(CoverageCounters other) {
+        lineCoveragePercentOverride = Math.max(lineCoveragePercentOverride, other.lineCoveragePercentOverride);
+        branchCoveragePercentOverride = Math.max(branchCoveragePercentOverride, other.branchCoveragePercentOverride);
+        pkg.merge(other.pkg);
+        cls.merge(other.cls);
+        method.merge(other.method);
+        line.merge(other.line);
+        branch.merge(other.branch);
+        file.merge(other.file);
+    }
+
+    static class CoverageCounter implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        long covered = 0;
+        long missed = 0;
+
+        void merge(CoverageCounter other) {
+            covered += other.covered;
+            missed += other.missed;
+        }
+
+        float getPercent() {
+            long total = covered + missed;
+            if (total == 0) {
+                return 100.0f;
+            } else {
+                return (covered * 1.0f / total * 1.0f) * 100.0f;
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@
 
 package com.uber.jenkins.phabricator.coverage;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,19 +30,34 @@ import javax.annotation.Nullable;
 
 public abstract class CoverageProvider {
 
-    final Set<String> includeFiles;
-    final Map<String, List<Integer>> lineCoverage = new HashMap<>();
+    final IncludeFileIndex includeFiles;
+    final Map<String, LineCoverage> lineCoverage = new HashMap<>();
     CodeCoverageMetrics metrics = null;
 
     private boolean hasComputedCoverage = false;
 
-    CoverageProvider(Set<String> includeFiles) {
+    CoverageProvider(IncludeFileIndex includeFiles) {
         this.includeFiles = includeFiles;
     }
 
+    /**
+     * Get the hit counts per file, where null means the line is not executable
+     *
+     * @return a read-only view of the line coverage
+     */
     public Map<String, List<Integer>> getLineCoverage() {
         computeCoverageIfNeeded();
-        return lineCoverage;
+        return Collections.unmodifiableMap(lineCoverage);
+    }
+
+    /**
+     * Get the hit counts per file, without boxing every line
+     *
+     * @return a read-only view of the line coverage
+     */
+    public Map<String, LineCoverage> getFileCoverage() {
+        computeCoverageIfNeeded();
+        return Collections.unmodifiableMap(lineCoverage);
     }
 
     public boolean hasCoverage() {
@@ -74,51 +90,13 @@ public abstract class CoverageProvider {
      * possible, we fall back to file name match. We only check against files included as part of a diff which means
      * that the possibility of a bad match is very unlikely (only if two files with same name are touched as part of
      * the diff), but that is the best we can accomplish.
+     *
+     * Handlers should resolve files through the {@link IncludeFileIndex} of the provider, which does not compare
+     * against every included file.
      */
     @Nullable
     static String getRelativePathFromProjectRoot(Set<String> includeFiles, String coverageFile) {
-        if (includeFiles == null || includeFiles.isEmpty()) {
-            return coverageFile;
-        } else {
-            int maxMatch = 0;
-            String maxMatchFile = null;
-            for (String includedFile : includeFiles) {
-                int currmatch = suffixMatch(includedFile, coverageFile);
-                if (currmatch > maxMatch) {
-                    maxMatch = currmatch;
-                    maxMatchFile = includedFile;
-                }
-            }
-
-            return maxMatchFile;
-        }
-    }
-
-    private static int suffixMatch(String changedFile, String coverageFile) {
-        int changedFileSize = changedFile.length();
-        int coverageFileSize = coverageFile.length();
-
-        if (coverageFileSize > changedFileSize) {
-            return 0;
-        }
-
-        int rIndex = 1;
-        while (coverageFileSize > rIndex && coverageFile.charAt(coverageFileSize - rIndex) == changedFile.charAt(
-                changedFileSize - rIndex)) {
-            rIndex++;
-        }
-
-        // Full path match
-        if (changedFileSize == rIndex) {
-            return rIndex;
-        }
-
-        // Make sure the match is not an accidental partial match
-        if (changedFileSize > rIndex && changedFile.charAt(changedFileSize - rIndex - 1) != '/') {
-            return 0;
-        }
-
-        return rIndex;
+        return IncludeFileIndex.of(includeFiles).getRelativePathFromProjectRoot(coverageFile);
     }
 
     /**
@@ -0,0 +1,304 @@
+// Copyright (c) 2015 Uber
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.uber.jenkins.phabricator.coverage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Resolves the file names found in coverage reports to the files changed by a diff.
+ *
+ * The changed files are kept reversed and sorted, so every file sharing a given suffix sits in one contiguous range.
+ * A lookup narrows that range one character at a time from the end of the coverage file name, which costs about
+ * the length of the name rather than the number of changed files. Resolved names are remembered, and the index of
+ * the last build of each job is kept, so a job that is rebuilt for the same diff doesn't resolve them again.
+ */
+public final class IncludeFileIndex {
+
+    private static final int MAX_CACHED_JOBS = 64;
+    private static final int MAX_CACHED_PATHS = 100000;
+    private static final String NO_MATCH = "";
+
+    private static final Map<String, IncludeFileIndex> JOB_INDEXES = Collections.synchronizedMap(
+            new LinkedHashMap<String, IncludeFileIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, IncludeFileIndex> eldest) {
+                    return size() > MAX_CACHED_JOBS;
+                }
+            });
+
+    private final Set<String> includeFiles;
+    private final String[] reversed;
+    private final String[] files;
+    private final ConcurrentMap<String, String> relativePaths = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> containedPaths = new ConcurrentHashMap<>();
+
+    private IncludeFileIndex(Set<String> includeFiles) {
+        this.includeFiles = includeFiles;
+        reversed = new String[includeFiles.size()];
+        int i = 0;
+        for (String includeFile : includeFiles) {
+            reversed[i++] = new StringBuilder(includeFile).reverse().toString();
+        }
+        Arrays.sort(reversed);
+        files = new String[reversed.length];
+        for (i = 0; i < reversed.length; i++) {
+            files[i] = new StringBuilder(reversed[i]).reverse().toString();
+        }
+    }
+
+    /**
+     * Build an index over the files changed by a diff
+     *
+     * @param includeFiles the changed files, or null or empty to include every file
+     * @return the index
+     */
+    public static IncludeFileIndex of(@Nullable Set<String> includeFiles) {
+        if (includeFiles == null) {
+            return new IncludeFileIndex(Collections.emptySet());
+        }
+        return new IncludeFileIndex(Collections.unmodifiableSet(new HashSet<>(includeFiles)));
+    }
+
+    /**
+     * Get the index for a build of a job, reusing the one of the previous build if it changed the same files
+     *
+     * @param jobName the full name of the job
+     * @param includeFiles the changed files, or null or empty to include every file
+     * @return the index
+     */
+    public static IncludeFileIndex forJob(String jobName, @Nullable Set<String> includeFiles) {
+        IncludeFileIndex cached = JOB_INDEXES.get(jobName);
+        Set<String> files = includeFiles == null ? Collections.emptySet() : includeFiles;
+        if (cached != null && cached.includeFiles.equals(files)) {
+            return cached;
+        }
+        IncludeFileIndex index = of(includeFiles);
+        JOB_INDEXES.put(jobName, index);
+        return index;
+    }
+
+    public Set<String> getIncludeFiles() {
+        return includeFiles;
+    }
+
+    public boolean isEmpty() {
+        return includeFiles.isEmpty();
+    }
+
+    /**
+     * Find the changed file that shares the longest suffix with a coverage file, see
+     * {@link CoverageProvider#getRelativePathFromProjectRoot(Set, String)}
+     *
+     * @param coverageFile the file name from the coverage report
+     * @return the changed file, the coverage file itself if every file is included, or null if nothing matches
+     */
+    @Nullable
+    public String getRelativePathFromProjectRoot(String coverageFile) {
+        if (isEmpty()) {
+            return coverageFile;
+        }
+        return lookup(relativePaths, coverageFile, true);
+    }
+
+    /**
+     * Find a changed file that is part of a coverage file name. Coverage formats like Clover report absolute paths
+     * from the node that ran the tests, so the changed file can be anywhere in the name. If several changed files
+     * are contained, the longest one wins.
+     *
+     * @param coverageFile the file name from the coverage report
+     * @return the changed file, the coverage file itself if every file is included, or null if nothing matches
+     */
+    @Nullable
+    public String getContainedPathFromProjectRoot(String coverageFile) {
+        if (isEmpty()) {
+            return coverageFile;
+        }
+        return lookup(containedPaths, coverageFile, false);
+    }
+
+    private String lookup(ConcurrentMap<String, String> cache, String coverageFile, boolean suffix) {
+        String match = cache.get(coverageFile);
+        if (match == null) {
+            match = suffix ? findBestSuffixMatch(coverageFile) : findLongestContained(coverageFile);
+            if (match == null) {
+                match = NO_MATCH;
+            }
+            if (cache.size() < MAX_CACHED_PATHS) {
+                cache.put(coverageFile, match);
+            }
+        }
+        return match.isEmpty() ? null : match;
+    }
+
+    /**
+     * The score of a changed file is the length of the suffix it shares with the coverage file, where the first
+     * character of the coverage file is never compared, plus one for the character where they differ. It only
+     * counts if the changed file is no shorter than the coverage file, and either ends there or has a '/' right
+     * before that character. Ties go to the changed file that sorts first by its reversed path.
+     */
+    @Nullable
+    private String findBestSuffixMatch(String coverageFile) {
+        int length = coverageFile.length();
+        if (length == 0) {
+            return null;
+        }
+
+        // Narrow down to the changed files ending with the whole coverage file but its first character, keeping the
+        // range of every shorter suffix on the way
+        int[] los = new int[length];
+        int[] his = new int[length];
+        his[0] = reversed.length;
+        int matched = 0;
+        while (matched < length - 1) {
+            char c = coverageFile.charAt(length - 1 - matched);
+            int lo = lowerBound(los[matched], his[matched], matched, c);
+            int hi = upperBound(lo, his[matched], matched, c);
+            if (lo == hi) {
+                break;
+            }
+            matched++;
+            los[matched] = lo;
+            his[matched] = hi;
+        }
+
+        if (matched == length - 1) {
+            String match = findMatchAfter(los[matched], his[matched], matched, -1, length);
+            if (match != null) {
+                return match;
+            }
+            matched--;
+        }
+
+        for (; matched >= 0; matched--) {
+            char next = coverageFile.charAt(length - 1 - matched);
+            String match = findMatchAfter(los[matched], his[matched], matched, next, length);
+            if (match != null) {
+                return match;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the first changed file in a range sharing {@code matched} characters, whose next character is not
+     * {@code excluded}, that is no shorter than {@code minLength} and either ends after that character or is
+     * followed by a '/'
+     */
+    @Nullable
+    private String findMatchAfter(int lo, int hi, int matched, int excluded, int minLength) {
+        int i = lo;
+        // Files ending right at the matched suffix sort first, and are too short to match
+        while (i < hi && reversed[i].length() == matched) {
+            i++;
+        }
+        while (i < hi) {
+            char c = reversed[i].charAt(matched);
+            int end = upperBound(i, hi, matched, c);
+            if (c != excluded) {
+                int start = i;
+                if (reversed[start].length() == matched + 1) {
+                    if (matched + 1 >= minLength) {
+                        return files[start];
+                    }
+                    start++;
+                }
+                int slash = lowerBound(start, end, matched + 1, '/');
+                int slashEnd = upperBound(slash, end, matched + 1, '/');
+                for (int j = slash; j < slashEnd; j++) {
+                    if (reversed[j].length() >= minLength) {
+                        return files[j];
+                    }
+                }
+            }
+            i = end;
+        }
+        return null;
+    }
+
+    @Nullable
+    private String findLongestContained(String coverageFile) {
+        String longest = null;
+        for (int end = coverageFile.length(); end > 0; end--) {
+            if (longest != null && longest.length() >= end) {
+                break;
+            }
+            int lo = 0;
+            int hi = reversed.length;
+            for (int depth = 0; depth < end && lo < hi; depth++) {
+                char c = coverageFile.charAt(end - 1 - depth);
+                int next = lowerBound(lo, hi, depth, c);
+                hi = upperBound(next, hi, depth, c);
+                lo = next;
+                if (lo < hi && reversed[lo].length() == depth + 1
+                        && (longest == null || depth + 1 > longest.length())) {
+                    longest = files[lo];
+                }
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Find the first file in a range, whose reversed paths share {@code depth} characters, with the character
+     * {@code c} or greater at that depth
+     */
+    private int lowerBound(int lo, int hi, int depth, char c) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (charAt(reversed[mid], depth) < c) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Find the first file in a range, whose reversed paths share {@code depth} characters, with a character greater
+     * than {@code c} at that depth
+     */
+    private int upperBound(int lo, int hi, int depth, char c) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (charAt(reversed[mid], depth) <= c) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int charAt(String path, int index) {
+        return index < path.length() ? path.charAt(index) : -1;
+    }
+}
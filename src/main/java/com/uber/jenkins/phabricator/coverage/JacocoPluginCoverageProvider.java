@@ -21,6 +21,7 @@
 package com.uber.jenkins.phabricator.coverage;
 
 import com.google.common.annotations.VisibleForTesting;
+import hudson.FilePath;
 import hudson.plugins.jacoco.JacocoBuildAction;
 import hudson.plugins.jacoco.report.CoverageReport;
 
@@ -34,11 +35,18 @@ public class JacocoPluginCoverageProvider extends XmlCoverageProvider {
 
     private final JacocoBuildAction buildAction;
 
-    public JacocoPluginCoverageProvider(Set<File> coverageReports, Set<String> includeFiles, JacocoBuildAction buildAction) {
+    public JacocoPluginCoverageProvider(Set<File> coverageReports, IncludeFileIndex includeFiles, JacocoBuildAction buildAction) {
         super(coverageReports, includeFiles);
         this.buildAction = buildAction;
     }
 
+    public JacocoPluginCoverageProvider(
+            FilePath workspace, String coverageReportPattern, IncludeFileIndex includeFiles,
+            JacocoBuildAction buildAction) {
+        super(workspace, coverageReportPattern, includeFiles);
+        this.buildAction = buildAction;
+    }
+
     @Override
     protected void computeMetrics() {
         CoverageReport coverageResult = buildAction.getResult();
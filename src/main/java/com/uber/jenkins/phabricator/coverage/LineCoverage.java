@@ -0,0 +1,156 @@
+// Copyright (c) 2015 Uber
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.uber.jenkins.phabricator.coverage;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The hit counts of a single file, indexed by line (line 1 is at index 0), backed by a primitive array.
+ *
+ * Lines that are not executable are stored as {@link #NOT_EXECUTABLE}, and read as null through the
+ * {@link List} view, so a file of any size costs one int per line instead of a boxed value or a tree node.
+ * The list view is read-only; counts are only recorded while parsing.
+ */
+public final class LineCoverage extends AbstractList<Integer> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int NOT_EXECUTABLE = -1;
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] hits;
+    private int size;
+
+    public LineCoverage() {
+        hits = EMPTY;
+    }
+
+    private LineCoverage(int[] hits) {
+        this.hits = hits;
+        this.size = hits.length;
+    }
+
+    /**
+     * Copy line coverage where null means the line is not executable
+     *
+     * @param lineCoverage the hit counts, indexed by line
+     * @return the primitive line coverage
+     */
+    public static LineCoverage of(List<Integer> lineCoverage) {
+        if (lineCoverage instanceof LineCoverage) {
+            return (LineCoverage) lineCoverage;
+        }
+        int[] hits = new int[lineCoverage.size()];
+        for (int i = 0; i < hits.length; i++) {
+            Integer hitCount = lineCoverage.get(i);
+            hits[i] = hitCount == null ? NOT_EXECUTABLE : hitCount;
+        }
+        return new LineCoverage(hits);
+    }
+
+    /**
+     * Record the hit count of a line, replacing any count recorded before
+     *
+     * @param lineNumber the line number, starting at 1
+     * @param hitCount the number of hits
+     */
+    void setHitCount(int lineNumber, int hitCount) {
+        if (lineNumber < 1) {
+            return;
+        }
+        ensureSize(lineNumber);
+        hits[lineNumber - 1] = Math.max(hitCount, 0);
+    }
+
+    /**
+     * Add the hit counts of another report for the same file. A line is executable if either report says so.
+     *
+     * @param other the line coverage to add
+     */
+    void merge(LineCoverage other) {
+        ensureSize(other.size);
+        for (int i = 0; i < other.size; i++) {
+            int otherHits = other.hits[i];
+            if (otherHits == NOT_EXECUTABLE) {
+                continue;
+            }
+            hits[i] = hits[i] == NOT_EXECUTABLE ? otherHits : hits[i] + otherHits;
+        }
+    }
+
+    /**
+     * Release the capacity reserved for lines that were never recorded
+     */
+    void trimToSize() {
+        if (hits.length != size) {
+            hits = Arrays.copyOf(hits, size);
+        }
+    }
+
+    public boolean isExecutable(int index) {
+        return getHitCount(index) != NOT_EXECUTABLE;
+    }
+
+    public boolean isCovered(int index) {
+        return getHitCount(index) > 0;
+    }
+
+    /**
+     * Get the hit count of a line without boxing it
+     *
+     * @param index the index of the line, starting at 0
+     * @return the hit count, or {@link #NOT_EXECUTABLE}
+     */
+    public int getHitCount(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return hits[index];
+    }
+
+    @Override
+    public Integer get(int index) {
+        int hitCount = getHitCount(index);
+        return hitCount == NOT_EXECUTABLE ? null : hitCount;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void ensureSize(int newSize) {
+        if (newSize <= size) {
+            return;
+        }
+        if (newSize > hits.length) {
+            hits = Arrays.copyOf(hits, Math.max(newSize, hits.length + (hits.length >> 1)));
+        }
+        Arrays.fill(hits, size, newSize, NOT_EXECUTABLE);
+        size = newSize;
+    }
+}
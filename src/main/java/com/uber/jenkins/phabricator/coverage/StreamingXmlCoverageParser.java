@@ -0,0 +1,482 @@
+// Copyright (c) 2015 Uber
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.uber.jenkins.phabricator.coverage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Parses Cobertura, Clover and JaCoCo coverage reports in a single forward pass over a StAX stream.
+ *
+ * Unlike the DOM handlers in {@link XmlCoverageProvider}, only the element path and the counts for the files we
+ * report on are kept in memory, so very large reports can be parsed without holding the whole document.
+ */
+class StreamingXmlCoverageParser {
+
+    private final XMLInputFactory factory;
+
+    StreamingXmlCoverageParser() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Parse a single coverage report
+     *
+     * @param report the coverage report
+     * @param includeFiles the files to collect line coverage for, or all files if empty
+     * @param cc the counters to update
+     * @param lineCoverage the line coverage to update
+     * @return false if the format of the report is not supported, in which case nothing was updated
+     * @throws IOException if the report can't be read
+     * @throws XMLStreamException if the report is not well-formed
+     */
+    boolean parse(
+            File report,
+            IncludeFileIndex includeFiles,
+            CoverageCounters cc,
+            Map<String, LineCoverage> lineCoverage) throws IOException, XMLStreamException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(report))) {
+            XMLStreamReader reader = createReader(is);
+            try {
+                StreamHandler handler = parse(reader, includeFiles, cc);
+                if (handler == null) {
+                    return false;
+                }
+                handler.finish(lineCoverage);
+                return true;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private XMLStreamReader createReader(InputStream is) throws XMLStreamException {
+        // Reports may be parsed concurrently, and factories are not guaranteed to be thread safe
+        synchronized (factory) {
+            return factory.createXMLStreamReader(is);
+        }
+    }
+
+    private StreamHandler parse(XMLStreamReader reader, IncludeFileIndex includeFiles, CoverageCounters cc) throws
+            XMLStreamException {
+        List<String> path = new ArrayList<>();
+        Map<String, String> rootAttributes = null;
+        StreamHandler handler = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                path.add(name);
+                if (handler == null) {
+                    if (path.size() == 1) {
+                        if ("report".equals(name)) {
+                            handler = new JacocoStreamHandler(path, includeFiles, cc);
+                        } else if ("coverage".equals(name)) {
+                            rootAttributes = getAttributes(reader);
+                        } else {
+                            return null;
+                        }
+                    } else if (path.size() == 2 && rootAttributes != null) {
+                        // Cobertura and Clover share the root element, so look at its children to tell them apart
+                        if ("packages".equals(name)) {
+                            handler = new CoberturaStreamHandler(path, includeFiles, cc, rootAttributes);
+                        } else if ("project".equals(name)) {
+                            handler = new CloverStreamHandler(path, includeFiles, cc);
+                        }
+                    }
+                }
+                if (handler != null) {
+                    handler.startElement(name, reader);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (handler != null) {
+                    handler.endElement(path.get(path.size() - 1));
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        return handler;
+    }
+
+    private static Map<String, String> getAttributes(XMLStreamReader reader) {
+        Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        return attributes;
+    }
+
+    private abstract static class StreamHandler {
+
+        final IncludeFileIndex includeFiles;
+        final CoverageCounters cc;
+        final Map<String, LineCoverage> internalCounts = new HashMap<>();
+        private final List<String> path;
+
+        StreamHandler(List<String> path, IncludeFileIndex includeFiles, CoverageCounters cc) {
+            this.path = path;
+            this.includeFiles = includeFiles;
+            this.cc = cc;
+        }
+
+        /**
+         * Get the name of an ancestor of the current element
+         *
+         * @param level 1 for the parent, 2 for the grandparent and so on
+         * @return the name of the ancestor, or null if the element is not nested that deep
+         */
+        String ancestor(int level) {
+            int index = path.size() - 1 - level;
+            return index >= 0 ? path.get(index) : null;
+        }
+
+        LineCoverage getHitCounts(String fileName) {
+            return internalCounts.computeIfAbsent(fileName, it -> new LineCoverage());
+        }
+
+        abstract void startElement(String name, XMLStreamReader reader);
+
+        abstract void endElement(String name);
+
+        void finish(Map<String, LineCoverage> lineCoverage) {
+            lineCoverage.putAll(internalCounts);
+        }
+    }
+
+    private static class CoberturaStreamHandler extends StreamHandler {
+
+        private final boolean hasLineCoverageInfo;
+
+        // Line coverage state for the current class
+        private LineCoverage classHitCounts;
+        // Counter state for the current package, class and method
+        private boolean inCountedClass;
+        private boolean packageCovered;
+        private boolean classCovered;
+        private boolean inMethod;
+        private boolean methodCovered;
+
+        CoberturaStreamHandler(
+                List<String> path, IncludeFileIndex includeFiles, CoverageCounters cc,
+                Map<String, String> rootAttributes) {
+            super(path, includeFiles, cc);
+
+            // Check if cobertura coverage-04.dtd format
+            if (rootAttributes.get("lines-covered") != null) {
+                hasLineCoverageInfo = true;
+                long linesCovered = XmlCoverageProvider.parseLongValue(rootAttributes.get("lines-covered"));
+                long linesValid = XmlCoverageProvider.parseLongValue(rootAttributes.get("lines-valid"));
+                cc.line.covered = linesCovered;
+                cc.line.missed = linesValid - linesCovered;
+            } else {
+                hasLineCoverageInfo = false;
+                if (rootAttributes.get("line-rate") != null) {
+                    cc.lineCoveragePercentOverride =
+                            XmlCoverageProvider.parseFloatValue(rootAttributes.get("line-rate")) * 100;
+                }
+            }
+
+            if (rootAttributes.get("branches-covered") != null) {
+                long branchesCovered = XmlCoverageProvider.parseLongValue(rootAttributes.get("branches-covered"));
+                long branchesValid = XmlCoverageProvider.parseLongValue(rootAttributes.get("branches-valid"));
+                cc.branch.covered = branchesCovered;
+                cc.branch.missed = branchesValid - branchesCovered;
+            } else if (rootAttributes.get("branch-rate") != null) {
+                cc.branchCoveragePercentOverride =
+                        XmlCoverageProvider.parseFloatValue(rootAttributes.get("branch-rate")) * 100;
+            }
+        }
+
+        @Override
+        void startElement(String name, XMLStreamReader reader) {
+            switch (name) {
+                case "package":
+                    packageCovered = false;
+                    break;
+                case "class":
+                    String fileName = includeFiles.getRelativePathFromProjectRoot(
+                            reader.getAttributeValue(null, "filename"));
+                    classHitCounts = fileName != null ? getHitCounts(fileName) : null;
+                    inCountedClass = "classes".equals(ancestor(1)) && "package".equals(ancestor(2));
+                    classCovered = false;
+                    break;
+                case "method":
+                    inMethod = inCountedClass && "methods".equals(ancestor(1));
+                    methodCovered = false;
+                    break;
+                case "line":
+                    if (!"lines".equals(ancestor(1))) {
+                        break;
+                    }
+                    if ("class".equals(ancestor(2))) {
+                        if (classHitCounts != null) {
+                            int lineNumber = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null,
+                                    "number"));
+                            classHitCounts.setHitCount(lineNumber, XmlCoverageProvider.parseIntValue(
+                                    reader.getAttributeValue(null, "hits")));
+                        }
+                        if (inCountedClass && !hasLineCoverageInfo) {
+                            int hits = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null, "hits"));
+                            if (hits > 0) {
+                                cc.line.covered += 1;
+                            } else {
+                                cc.line.missed += 1;
+                            }
+                        }
+                    } else if ("method".equals(ancestor(2)) && inMethod && !methodCovered) {
+                        int hits = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null, "hits"));
+                        methodCovered = hits > 0;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        void endElement(String name) {
+            switch (name) {
+                case "package":
+                    if (packageCovered) {
+                        cc.pkg.covered += 1;
+                    } else {
+                        cc.pkg.missed += 1;
+                    }
+                    break;
+                case "class":
+                    if (inCountedClass) {
+                        if (classCovered) {
+                            cc.cls.covered += 1;
+                            packageCovered = true;
+                        } else {
+                            cc.cls.missed += 1;
+                        }
+                    }
+                    classHitCounts = null;
+                    inCountedClass = false;
+                    break;
+                case "method":
+                    if (inMethod) {
+                        if (methodCovered) {
+                            cc.method.covered += 1;
+                            classCovered = true;
+                        } else {
+                            cc.method.missed += 1;
+                        }
+                    }
+                    inMethod = false;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static class JacocoStreamHandler extends StreamHandler {
+
+        private String packageName;
+        private LineCoverage fileHitCounts;
+
+        JacocoStreamHandler(List<String> path, IncludeFileIndex includeFiles, CoverageCounters cc) {
+            super(path, includeFiles, cc);
+        }
+
+        @Override
+        void startElement(String name, XMLStreamReader reader) {
+            switch (name) {
+                case "package":
+                    packageName = reader.getAttributeValue(null, "name");
+                    break;
+                case "sourcefile":
+                    if ("package".equals(ancestor(1))) {
+                        String fileName = packageName + File.separatorChar + reader.getAttributeValue(null, "name");
+                        String finalFileName = includeFiles.getRelativePathFromProjectRoot(fileName);
+                        fileHitCounts = finalFileName != null ? getHitCounts(finalFileName) : null;
+                    }
+                    break;
+                case "line":
+                    if (fileHitCounts != null && "sourcefile".equals(ancestor(1))) {
+                        long hitCount = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null, "ci"));
+                        int lineNumber = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null, "nr"));
+                        fileHitCounts.setHitCount(lineNumber, hitCount > 0 ? 1 : 0);
+                    }
+                    break;
+                case "counter":
+                    // Only the report level counters hold the totals
+                    if (ancestor(2) == null) {
+                        updateCounters(reader);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void updateCounters(XMLStreamReader reader) {
+            long covered = Long.valueOf(reader.getAttributeValue(null, "covered"));
+            long missed = Long.valueOf(reader.getAttributeValue(null, "missed"));
+            switch (reader.getAttributeValue(null, "type")) {
+                case "CLASS":
+                    cc.cls.covered += covered;
+                    cc.cls.missed += missed;
+                    break;
+                case "METHOD":
+                    cc.method.covered += covered;
+                    cc.method.missed += missed;
+                    break;
+                case "LINE":
+                    cc.line.covered += covered;
+                    cc.line.missed += missed;
+                    break;
+                case "BRANCH":
+                    cc.branch.covered += covered;
+                    cc.branch.missed += missed;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        void endElement(String name) {
+            if ("sourcefile".equals(name)) {
+                fileHitCounts = null;
+            }
+        }
+    }
+
+    private static class CloverStreamHandler extends StreamHandler {
+
+        private boolean inFile;
+        private LineCoverage fileHitCounts;
+        private boolean packageCovered;
+        private boolean fileCovered;
+
+        CloverStreamHandler(List<String> path, IncludeFileIndex includeFiles, CoverageCounters cc) {
+            super(path, includeFiles, cc);
+        }
+
+        @Override
+        void startElement(String name, XMLStreamReader reader) {
+            switch (name) {
+                case "package":
+                    packageCovered = false;
+                    break;
+                case "file":
+                    if ("package".equals(ancestor(1))) {
+                        inFile = true;
+                        fileCovered = false;
+                        String fileName = includeFiles.getContainedPathFromProjectRoot(
+                                reader.getAttributeValue(null, "name"));
+                        fileHitCounts = fileName != null ? getHitCounts(fileName) : null;
+                    }
+                    break;
+                case "line":
+                    if (inFile && "file".equals(ancestor(1))) {
+                        processLine(reader);
+                    }
+                    break;
+                case "metrics":
+                    if (inFile && "class".equals(ancestor(1)) && "file".equals(ancestor(2))) {
+                        int coveredStatements = XmlCoverageProvider.parseIntValue(
+                                reader.getAttributeValue(null, "coveredstatements"));
+                        if (coveredStatements > 0) {
+                            fileCovered = true;
+                            cc.cls.covered += 1;
+                        } else {
+                            cc.cls.missed += 1;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void processLine(XMLStreamReader reader) {
+            String type = reader.getAttributeValue(null, "type");
+            if ("stmt".equals(type)) {
+                int lineHits = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null, "count"));
+                if (fileHitCounts != null) {
+                    int lineNumber = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null, "num"));
+                    fileHitCounts.setHitCount(lineNumber, lineHits > 0 ? 1 : 0);
+                }
+                if (lineHits > 0) {
+                    fileCovered = true;
+                    cc.line.covered += 1;
+                } else {
+                    cc.line.missed += 1;
+                }
+            } else if ("method".equals(type)) {
+                int methodHits = XmlCoverageProvider.parseIntValue(reader.getAttributeValue(null, "count"));
+                if (methodHits > 0) {
+                    fileCovered = true;
+                    cc.method.covered += 1;
+                } else {
+                    cc.method.missed += 1;
+                }
+            }
+        }
+
+        @Override
+        void endElement(String name) {
+            switch (name) {
+                case "package":
+                    if (packageCovered) {
+                        cc.pkg.covered += 1;
+                    } else {
+                        cc.pkg.missed += 1;
+                    }
+                    break;
+                case "file":
+                    if (inFile && "package".equals(ancestor(1))) {
+                        if (fileCovered) {
+                            packageCovered = true;
+                            cc.file.covered += 1;
+                        } else {
+                            cc.file.missed += 1;
+                        }
+                        inFile = false;
+                        fileHitCounts = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -31,60 +31,114 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import hudson.FilePath;
 
 public class XmlCoverageProvider extends CoverageProvider {
 
+    /**
+     * Set this system property to parse every report into a DOM instead of streaming it, e.g. to rule out
+     * differences between the two engines
+     */
+    static final String USE_DOM_PARSER_PROPERTY = XmlCoverageProvider.class.getName() + ".useDomParser";
+
+    /**
+     * Set this system property to the maximum number of reports to parse at the same time across all builds
+     */
+    static final String PARSER_THREADS_PROPERTY = XmlCoverageProvider.class.getName() + ".parserThreads";
+
+    private static final int PARSER_THREADS = Math.max(1,
+            Integer.getInteger(PARSER_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
     private final List<XmlCoverageHandler> xmlCoverageHandlers;
     private final Set<File> coverageReports;
-    private final DocumentBuilder db;
+    private final FilePath workspace;
+    private final String coverageReportPattern;
+    private final DocumentBuilderFactory dbf;
+    private final StreamingXmlCoverageParser streamingParser;
     private final CoverageCounters cc;
 
     XmlCoverageProvider(Set<File> coverageReports) {
-        this(coverageReports, null);
+        this(coverageReports, (Set<String>) null);
     }
 
     public XmlCoverageProvider(Set<File> coverageReports, Set<String> includeFiles) {
+        this(coverageReports, IncludeFileIndex.of(includeFiles));
+    }
+
+    public XmlCoverageProvider(Set<File> coverageReports, IncludeFileIndex includeFiles) {
+        this(coverageReports, null, null, includeFiles);
+    }
+
+    /**
+     * Parse the reports on the node that holds the workspace, so only the counters and the line coverage of the
+     * included files are sent back instead of the reports
+     *
+     * @param workspace the workspace of the build
+     * @param coverageReportPattern the pattern of the coverage reports, relative to the workspace
+     * @param includeFiles the files to collect line coverage for
+     */
+    public XmlCoverageProvider(FilePath workspace, String coverageReportPattern, IncludeFileIndex includeFiles) {
+        this(Collections.emptySet(), workspace, coverageReportPattern, includeFiles);
+    }
+
+    private XmlCoverageProvider(
+            Set<File> coverageReports,
+            FilePath workspace,
+            String coverageReportPattern,
+            IncludeFileIndex includeFiles) {
         super(includeFiles);
         this.coverageReports = coverageReports;
+        this.workspace = workspace;
+        this.coverageReportPattern = coverageReportPattern;
         this.xmlCoverageHandlers = Arrays.asList(new CoberturaXmlCoverageHandler(),
                 new CloverXmlCoverageHandler(),
                 new JacocoXmlCoverageHandler());
 
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf = DocumentBuilderFactory.newInstance();
         dbf.setValidating(false);
         dbf.setNamespaceAware(true);
-        DocumentBuilder localDb = null;
         try {
             dbf.setFeature("http://xml.org/sax/features/namespaces", false);
             dbf.setFeature("http://xml.org/sax/features/validation", false);
             dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
             dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-            localDb = dbf.newDocumentBuilder();
         } catch (ParserConfigurationException e) {
             e.printStackTrace();
         }
-        db = localDb;
+        streamingParser = Boolean.getBoolean(USE_DOM_PARSER_PROPERTY) ? null : new StreamingXmlCoverageParser();
         cc = new CoverageCounters();
     }
 
     @Override
     protected void computeCoverage() {
         try {
-            parse(includeFiles, coverageReports);
-        } catch (SAXException | IOException e) {
+            ReportCoverage coverage = workspace != null ? parseOnAgent() : parseReports();
+            cc.merge(coverage.cc);
+            lineCoverage.putAll(coverage.lineCoverage);
+        } catch (SAXException | XMLStreamException | IOException e) {
             e.printStackTrace();
         }
         computeMetrics();
@@ -104,23 +158,139 @@ public class XmlCoverageProvider extends CoverageProvider {
         );
     }
 
-    private void parse(Set<String> includeFiles, Set<File> reports) throws SAXException, IOException {
+    private ReportCoverage parseOnAgent() throws IOException {
+        try {
+            return workspace.act(new AgentCoverageParser(coverageReportPattern, includeFiles.getIncludeFiles()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing coverage reports on the agent");
+        }
+    }
+
+    /**
+     * Parse all coverage reports of this provider
+     *
+     * @return the counters and line coverage of all reports
+     */
+    ReportCoverage parseReports() throws SAXException, XMLStreamException, IOException {
+        List<ReportCoverage> partials = new ArrayList<>(coverageReports.size());
+        if (coverageReports.size() > 1 && PARSER_THREADS > 1) {
+            List<Future<ReportCoverage>> futures = new ArrayList<>(coverageReports.size());
+            for (File file : coverageReports) {
+                futures.add(ParserPool.EXECUTOR.submit(() -> parseReport(file, includeFiles)));
+            }
+            try {
+                for (Future<ReportCoverage> future : futures) {
+                    partials.add(getReportCoverage(future));
+                }
+            } finally {
+                for (Future<ReportCoverage> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        } else {
+            for (File file : coverageReports) {
+                partials.add(parseReport(file, includeFiles));
+            }
+        }
+
+        // Merge in report order, so the result does not depend on which report finished first
+        ReportCoverage coverage = new ReportCoverage();
+        for (ReportCoverage partial : partials) {
+            coverage.cc.merge(partial.cc);
+            mergeLineCoverage(coverage.lineCoverage, partial.lineCoverage);
+        }
+        for (LineCoverage fileCoverage : coverage.lineCoverage.values()) {
+            fileCoverage.trimToSize();
+        }
+        return coverage;
+    }
+
+    private ReportCoverage parseReport(File file, IncludeFileIndex includeFiles) throws SAXException,
+            XMLStreamException, IOException {
+        ReportCoverage partial = new ReportCoverage();
+        // Reports are streamed in a single pass where possible, so memory does not grow with the report size
+        if (streamingParser == null || !streamingParser.parse(file, includeFiles, partial.cc,
+                partial.lineCoverage)) {
+            parseDocument(file, includeFiles, partial.cc, partial.lineCoverage);
+        }
+        for (LineCoverage fileCoverage : partial.lineCoverage.values()) {
+            fileCoverage.trimToSize();
+        }
+        return partial;
+    }
+
+    private void parseDocument(
+            File file,
+            IncludeFileIndex includeFiles,
+            CoverageCounters counters,
+            Map<String, LineCoverage> reportLineCoverage) throws SAXException, IOException {
+        DocumentBuilder db = newDocumentBuilder();
         if (db != null) {
-            for (File file : reports) {
-                try (InputStream is = new FileInputStream(file)) {
-                    Document document = db.parse(is);
-                    for (XmlCoverageHandler xmlCoverageHandler : xmlCoverageHandlers) {
-                        if (xmlCoverageHandler.isApplicable(document)) {
-                            xmlCoverageHandler.parseCoverage(document, includeFiles, cc, lineCoverage);
-                        }
+            try (InputStream is = new FileInputStream(file)) {
+                Document document = db.parse(is);
+                for (XmlCoverageHandler xmlCoverageHandler : xmlCoverageHandlers) {
+                    if (xmlCoverageHandler.isApplicable(document)) {
+                        xmlCoverageHandler.parseCoverage(document, includeFiles, counters, reportLineCoverage);
                     }
                 }
             }
         }
     }
 
-    private static Long getLongValue(NamedNodeMap attrs, String attr) {
-        String content = attrs.getNamedItem(attr).getTextContent();
+    @Nullable
+    private DocumentBuilder newDocumentBuilder() {
+        // Document builders are not thread safe, so every report gets its own
+        synchronized (dbf) {
+            try {
+                return dbf.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    private static ReportCoverage getReportCoverage(Future<ReportCoverage> future) throws SAXException,
+            XMLStreamException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing coverage reports");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof XMLStreamException) {
+                throw (XMLStreamException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Add the line coverage of a single report to the line coverage collected so far. Hits for a line that is
+     * covered by several reports are summed, and a line is executable if any report says so.
+     */
+    static void mergeLineCoverage(Map<String, LineCoverage> lineCoverage, Map<String, LineCoverage> other) {
+        for (Map.Entry<String, LineCoverage> entry : other.entrySet()) {
+            LineCoverage fileCoverage = lineCoverage.get(entry.getKey());
+            if (fileCoverage == null) {
+                lineCoverage.put(entry.getKey(), entry.getValue());
+            } else {
+                fileCoverage.merge(entry.getValue());
+            }
+        }
+    }
+
+    static long parseLongValue(String content) {
         try {
             return Math.round(Double.valueOf(content));
         } catch (NumberFormatException e) {
@@ -128,8 +298,7 @@ public class XmlCoverageProvider extends CoverageProvider {
         }
     }
 
-    private static Integer getIntValue(NamedNodeMap attrs, String attr) {
-        String content = attrs.getNamedItem(attr).getTextContent();
+    static int parseIntValue(String content) {
         try {
             return Math.round(Float.valueOf(content));
         } catch (NumberFormatException e) {
@@ -137,8 +306,7 @@ public class XmlCoverageProvider extends CoverageProvider {
         }
     }
 
-    private static Float getFloatValue(NamedNodeMap attrs, String attr) {
-        String content = attrs.getNamedItem(attr).getTextContent();
+    static float parseFloatValue(String content) {
         try {
             return Float.valueOf(content);
         } catch (NumberFormatException e) {
@@ -146,33 +314,61 @@ public class XmlCoverageProvider extends CoverageProvider {
         }
     }
 
+    private static Long getLongValue(NamedNodeMap attrs, String attr) {
+        return parseLongValue(attrs.getNamedItem(attr).getTextContent());
+    }
+
+    private static Integer getIntValue(NamedNodeMap attrs, String attr) {
+        return parseIntValue(attrs.getNamedItem(attr).getTextContent());
+    }
+
+    private static Float getFloatValue(NamedNodeMap attrs, String attr) {
+        return parseFloatValue(attrs.getNamedItem(attr).getTextContent());
+    }
+
+    /**
+     * The counters and line coverage of one or more reports
+     */
+    static class ReportCoverage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final CoverageCounters cc = new CoverageCounters();
+        final Map<String, LineCoverage> lineCoverage = new HashMap<>();
+    }
+
+    /**
+     * Bounded pool shared by all builds, so parsing many large reports can't take over the controller. Idle
+     * threads are released, since coverage is only parsed at the end of a build.
+     */
+    private static class ParserPool {
+
+        private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+        static final ExecutorService EXECUTOR = createExecutor();
+
+        private static ExecutorService createExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(PARSER_THREADS, PARSER_THREADS, 60L,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable,
+                                "phabricator-coverage-parser-" + THREAD_COUNT.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
     private abstract static class XmlCoverageHandler {
 
         abstract boolean isApplicable(Document document);
 
         abstract void parseCoverage(
                 Document document,
-                Set<String> includeFiles,
+                IncludeFileIndex includeFiles,
                 CoverageCounters cc,
-                Map<String, List<Integer>> lineCoverage);
-
-        void computeLineCoverage(
-                Map<String, SortedMap<Integer, Integer>> internalCounts,
-                Map<String, List<Integer>> lineCoverage) {
-            for (Map.Entry<String, SortedMap<Integer, Integer>> entry : internalCounts.entrySet()) {
-                List<Integer> sortedCounts = new ArrayList<>();
-                int startIndex = 1;
-                for (Map.Entry<Integer, Integer> line : entry.getValue().entrySet()) {
-                    for (int i = startIndex; i < line.getKey(); i++) {
-                        sortedCounts.add(null);
-                        startIndex++;
-                    }
-                    sortedCounts.add(line.getValue());
-                    startIndex++;
-                }
-                lineCoverage.put(entry.getKey(), sortedCounts);
-            }
-        }
+                Map<String, LineCoverage> lineCoverage);
     }
 
     private static class CoberturaXmlCoverageHandler extends XmlCoverageHandler {
@@ -214,10 +410,9 @@ public class XmlCoverageProvider extends CoverageProvider {
 
         @Override
         void parseCoverage(
-                Document document, Set<String> includeFiles,
+                Document document, IncludeFileIndex includeFiles,
                 CoverageCounters cc,
-                Map<String, List<Integer>> lineCoverage) {
-            Map<String, SortedMap<Integer, Integer>> internalCounts = new HashMap<>();
+                Map<String, LineCoverage> lineCoverage) {
             NodeList classes = document.getElementsByTagName("class");
 
             // Collect all filenames in coverage report
@@ -227,7 +422,7 @@ public class XmlCoverageProvider extends CoverageProvider {
                 Node classNode = classes.item(i);
                 String fileName = classNode.getAttributes().getNamedItem(NODE_FILENAME).getTextContent();
 
-                String finalFileName = getRelativePathFromProjectRoot(includeFiles, fileName);
+                String finalFileName = includeFiles.getRelativePathFromProjectRoot(fileName);
                 if (finalFileName != null) {
                     fileNames.add(finalFileName);
                     childNodes.add(classNode.getChildNodes());
@@ -237,7 +432,7 @@ public class XmlCoverageProvider extends CoverageProvider {
             // Loop over all files which are needed for coverage report
             for (int i = 0; i < fileNames.size(); i++) {
                 String fileName = fileNames.get(i);
-                SortedMap<Integer, Integer> hitCounts = internalCounts.computeIfAbsent(fileName, it -> new TreeMap<>());
+                LineCoverage hitCounts = lineCoverage.computeIfAbsent(fileName, it -> new LineCoverage());
 
                 NodeList children = childNodes.get(i);
                 for (int j = 0; j < children.getLength(); j++) {
@@ -252,13 +447,12 @@ public class XmlCoverageProvider extends CoverageProvider {
                             }
 
                             NamedNodeMap attrs = line.getAttributes();
-                            Integer lineNumber = getIntValue(attrs, NODE_NUMBER);
-                            hitCounts.put(lineNumber, getIntValue(attrs, NODE_HITS));
+                            int lineNumber = getIntValue(attrs, NODE_NUMBER);
+                            hitCounts.setHitCount(lineNumber, getIntValue(attrs, NODE_HITS));
                         }
                     }
                 }
             }
-            computeLineCoverage(internalCounts, lineCoverage);
 
             // Update Counters
             Node root = document.getDocumentElement();
@@ -374,10 +568,9 @@ public class XmlCoverageProvider extends CoverageProvider {
 
         @Override
         void parseCoverage(
-                Document document, Set<String> includeFiles,
+                Document document, IncludeFileIndex includeFiles,
                 CoverageCounters cc,
-                Map<String, List<Integer>> lineCoverage) {
-            Map<String, SortedMap<Integer, Integer>> internalCounts = new HashMap<>();
+                Map<String, LineCoverage> lineCoverage) {
             NodeList packages = document.getElementsByTagName("package");
 
             // Compute line coverage
@@ -391,10 +584,10 @@ public class XmlCoverageProvider extends CoverageProvider {
                         String fileName = packageName
                                 + File.separatorChar
                                 + childNode.getAttributes().getNamedItem("name").getTextContent();
-                        String finalFileName = getRelativePathFromProjectRoot(includeFiles, fileName);
+                        String finalFileName = includeFiles.getRelativePathFromProjectRoot(fileName);
                         if (finalFileName != null) {
-                            SortedMap<Integer, Integer> hitCounts = internalCounts.computeIfAbsent(
-                                    finalFileName, it -> new TreeMap<>());
+                            LineCoverage hitCounts = lineCoverage.computeIfAbsent(
+                                    finalFileName, it -> new LineCoverage());
                             NodeList coverage = childNode.getChildNodes();
                             for (int k = 0; k < coverage.getLength(); k++) {
                                 Node coverageNode = coverage.item(k);
@@ -402,14 +595,13 @@ public class XmlCoverageProvider extends CoverageProvider {
                                     NamedNodeMap attrs = coverageNode.getAttributes();
                                     long hitCount = getIntValue(attrs, "ci");
                                     int lineNumber = getIntValue(attrs, "nr");
-                                    hitCounts.put(lineNumber, hitCount > 0 ? 1 : 0);
+                                    hitCounts.setHitCount(lineNumber, hitCount > 0 ? 1 : 0);
                                 }
                             }
                         }
                     }
                 }
             }
-            computeLineCoverage(internalCounts, lineCoverage);
 
             // Update Counters
             NodeList children = document.getDocumentElement().getChildNodes();
@@ -466,10 +658,9 @@ public class XmlCoverageProvider extends CoverageProvider {
 
         @Override
         void parseCoverage(
-                Document document, Set<String> includeFiles,
+                Document document, IncludeFileIndex includeFiles,
                 CoverageCounters cc,
-                Map<String, List<Integer>> lineCoverage) {
-            Map<String, SortedMap<Integer, Integer>> internalCounts = new HashMap<String, SortedMap<Integer, Integer>>();
+                Map<String, LineCoverage> lineCoverage) {
             NodeList packages = document.getElementsByTagName("package");
 
             // Compute line coverage
@@ -483,10 +674,10 @@ public class XmlCoverageProvider extends CoverageProvider {
                     }
 
                     String fileName = fileNode.getAttributes().getNamedItem("name").getTextContent();
-                    String finalFileName = getRelativePathFromProjectRoot(includeFiles, fileName);
+                    String finalFileName = includeFiles.getContainedPathFromProjectRoot(fileName);
                     if (finalFileName != null) {
-                        SortedMap<Integer, Integer> hitCounts = internalCounts.computeIfAbsent(
-                                finalFileName, it -> new TreeMap<>());
+                        LineCoverage hitCounts = lineCoverage.computeIfAbsent(
+                                finalFileName, it -> new LineCoverage());
                         NodeList coverage = fileNode.getChildNodes();
                         for (int k = 0; k < coverage.getLength(); k++) {
                             Node coverageNode = coverage.item(k);
@@ -495,14 +686,13 @@ public class XmlCoverageProvider extends CoverageProvider {
                                 if ("stmt".equals(attrs.getNamedItem("type").getTextContent())) {
                                     long hitCount = getIntValue(attrs, "count");
                                     int lineNumber = getIntValue(attrs, "num");
-                                    hitCounts.put(lineNumber, hitCount > 0 ? 1 : 0);
+                                    hitCounts.setHitCount(lineNumber, hitCount > 0 ? 1 : 0);
                                 }
                             }
                         }
                     }
                 }
             }
-            computeLineCoverage(internalCounts, lineCoverage);
 
             // Update Counters
             for (int i = 0; i < packages.getLength(); i++) {
@@ -574,51 +764,5 @@ public class XmlCoverageProvider extends CoverageProvider {
                 }
             }
         }
-
-        /**
-         * The coverage file is an absolute path, but the include files are relative paths. But the coverage file might
-         * have been generated on a different node, where the directory structure differs. So we try to match the
-         * coverageFile to the includeFile that seems the most related
-         */
-        @Nullable
-        private static String getRelativePathFromProjectRoot(Set<String> includeFiles, String coverageFile) {
-            if (includeFiles == null || includeFiles.isEmpty()) {
-                return coverageFile;
-            } else {
-                for (String includedFile : includeFiles) {
-                    if (coverageFile.contains(includedFile)) {
-                        return includedFile;
-                    }
-                }
-                return null;
-            }
-        }
-    }
-
-    private static class CoverageCounter {
-
-        long covered = 0;
-        long missed = 0;
-
-        float getPercent() {
-            long total = covered + missed;
-            if (total == 0) {
-                return 100.0f;
-            } else {
-                return (covered * 1.0f / total * 1.0f) * 100.0f;
-            }
-        }
-    }
-
-    private static class CoverageCounters {
-
-        Float lineCoveragePercentOverride = 0.0f;
-        Float branchCoveragePercentOverride = 0.0f;
-        private final CoverageCounter pkg = new CoverageCounter();
-        private final CoverageCounter cls = new CoverageCounter();
-        private final CoverageCounter method = new CoverageCounter();
-        private final CoverageCounter line = new CoverageCounter();
-        private final CoverageCounter branch = new CoverageCounter();
-        private final CoverageCounter file = new CoverageCounter();
     }
 }
@@ -31,4 +31,11 @@ public interface ConduitCredentials extends Credentials {
     String getGateway();
 
     String getUrl();
+
+    /**
+     * @return whether large conduit requests should be gzipped, when the server accepts it
+     */
+    default boolean isCompressRequests() {
+        return false;
+    }
 }
@@ -26,6 +26,7 @@ import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
 import com.uber.jenkins.phabricator.utils.CommonUtils;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -46,6 +47,8 @@ public class ConduitCredentialsImpl extends BaseStandardCredentials implements C
     @NonNull
     private final String url;
 
+    private boolean compressRequests;
+
     @DataBoundConstructor
     public ConduitCredentialsImpl(
             @CheckForNull String id,
@@ -74,6 +77,16 @@ public class ConduitCredentialsImpl extends BaseStandardCredentials implements C
         return url;
     }
 
+    @Override
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    @DataBoundSetter
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
     @Extension
     @SuppressWarnings("unused")
     public static class Descriptor extends CredentialsDescriptor {
@@ -87,7 +87,7 @@ public class NonDifferentialBuildTask extends Task {
             if (!CommonUtils.isBlank(commitSha)) {
                 info(String.format("Sending coverage result for %s as %s", commitSha,
                         codeCoverageMetrics.toString()));
-                result = uberallsClient.recordCoverage(commitSha, codeCoverageMetrics) ?
+                result = uberallsClient.queueCoverage(commitSha, codeCoverageMetrics) ?
                         Result.SUCCESS : Result.FAILURE;
             } else {
                 info("No line coverage found. Ignoring build.");
@@ -20,6 +20,7 @@
 
 package com.uber.jenkins.phabricator.tasks;
 
+import com.uber.jenkins.phabricator.conduit.ConduitAPIClient;
 import com.uber.jenkins.phabricator.conduit.ConduitAPIException;
 import com.uber.jenkins.phabricator.conduit.DifferentialClient;
 import com.uber.jenkins.phabricator.utils.Logger;
@@ -41,6 +42,7 @@ public class PostCommentTask extends Task {
     private final String revisionID;
     private final String comment;
     private final String commentAction;
+    private boolean queued;
 
     /**
      * PostCommentTask constructor.
@@ -85,6 +87,9 @@ public class PostCommentTask extends Task {
     protected void execute() {
         JSONObject postDifferentialCommentResult = postDifferentialComment(comment, SILENT,
                 commentAction);
+        if (queued) {
+            return;
+        }
         if (postDifferentialCommentResult == null ||
                 !(postDifferentialCommentResult.get("error_info") instanceof JSONNull)) {
             if (postDifferentialCommentResult != null) {
@@ -112,12 +117,41 @@ public class PostCommentTask extends Task {
             result = Result.SUCCESS;
             return postDifferentialCommentResult;
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            // The client already retried what it safely could, so don't take the build down with it. Comments are
+            // only queued when Phabricator can't have posted them, e.g. not after a read timeout
+            if (ConduitAPIClient.isUnprocessed(e) && queueDifferentialComment(message, silent, action)) {
+                return null;
+            }
+            printStackTrace(e);
+            info("unable to post comment");
         } catch (ConduitAPIException e) {
+            if (ConduitAPIClient.isUnprocessed(e) && queueDifferentialComment(message, silent, action)) {
+                return null;
+            }
             info("unable to post comment");
         }
 
         result = Result.FAILURE;
         return null;
     }
+
+    /**
+     * Leave the comment in the controller's outbox, to be posted once Phabricator is back
+     *
+     * @return whether the comment was queued
+     */
+    private boolean queueDifferentialComment(String message, boolean silent, String action) {
+        try {
+            if (!differentialClient.queueComment(revisionID, message, silent, action)) {
+                return false;
+            }
+        } catch (IOException e) {
+            printStackTrace(e);
+            return false;
+        }
+        info("Phabricator is unavailable, the comment will be posted once it is back");
+        queued = true;
+        result = Result.SUCCESS;
+        return true;
+    }
 }
@@ -2,24 +2,43 @@ package com.uber.jenkins.phabricator.tasks;
 
 import com.uber.jenkins.phabricator.conduit.ConduitAPIException;
 import com.uber.jenkins.phabricator.conduit.DifferentialClient;
+import com.uber.jenkins.phabricator.conduit.HarbormasterClient;
 import com.uber.jenkins.phabricator.conduit.HarbormasterClient.MessageType;
+import com.uber.jenkins.phabricator.lint.LintResult;
 import com.uber.jenkins.phabricator.lint.LintResults;
+import com.uber.jenkins.phabricator.unit.UnitResult;
 import com.uber.jenkins.phabricator.unit.UnitResults;
 import com.uber.jenkins.phabricator.utils.Logger;
 
 import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class SendHarbormasterResultTask extends Task {
 
+    /**
+     * Results bigger than this, in bytes of the form-encoded request, are sent in several 'work' messages before the
+     * final one, so no single request goes over the server's limits. Each request must also be sent and processed
+     * well within the conduit socket timeout of {@link com.uber.jenkins.phabricator.utils.HttpClientPool}, or it is
+     * sent again in full.
+     */
+    static final int MAX_MESSAGE_SIZE = Integer.getInteger(SendHarbormasterResultTask.class.getName()
+            + ".maxMessageSize", 2 * 1024 * 1024);
+    // Encoded colon and comma around each file of coverage
+    private static final int COVERAGE_ENTRY_OVERHEAD = 6;
+
     private final DifferentialClient diffClient;
     private final String phid;
     private final MessageType messageType;
     private final Map<String, String> coverage;
     private final LintResults lintResults;
+    private final int maxMessageSize;
     private UnitResults unitResults;
 
     public SendHarbormasterResultTask(
@@ -27,7 +46,16 @@ public class SendHarbormasterResultTask extends Task {
             MessageType messageType, UnitResults unitResults,
             Map<String, String> harbormasterCoverage,
             LintResults lintResults) {
+        this(logger, diffClient, phid, messageType, unitResults, harbormasterCoverage, lintResults, MAX_MESSAGE_SIZE);
+    }
+
+    SendHarbormasterResultTask(
+            Logger logger, DifferentialClient diffClient, String phid,
+            MessageType messageType, UnitResults unitResults,
+            Map<String, String> harbormasterCoverage,
+            LintResults lintResults, int maxMessageSize) {
         super(logger);
+        this.maxMessageSize = maxMessageSize;
         this.diffClient = diffClient;
         this.phid = phid;
         this.messageType = messageType;
@@ -57,17 +85,40 @@ public class SendHarbormasterResultTask extends Task {
      */
     @Override
     protected void execute() {
+        List<Part> parts = split();
+        // The first part not sent yet, once they all are only the final message is left
+        int next = 0;
         try {
-            if (!sendMessage(unitResults, coverage, lintResults)) {
-                info("Error sending Harbormaster unit results, trying again without unit data (you may have an old Phabricator?).");
-                sendMessage(null, null, null);
+            if (parts.size() <= 1) {
+                if (!sendMessage(messageType, unitResults, coverage, lintResults)) {
+                    info("Error sending Harbormaster unit results, trying again without unit data (you may have an old Phabricator?).");
+                    // Phabricator won't take the results, so they aren't queued if this fails too
+                    next = parts.size();
+                    sendMessage(messageType, null, null, null);
+                }
+                return;
+            }
+
+            info(String.format("Sending Harbormaster results in %d parts", parts.size()));
+            for (; next < parts.size(); next++) {
+                Part part = parts.get(next);
+                if (!sendMessage(MessageType.work, part.unitResults, part.coverage, part.lintResults)) {
+                    info("Error sending part of the Harbormaster results, sending the build result without the rest.");
+                    next = parts.size();
+                    break;
+                }
             }
+            sendMessage(messageType, null, null, null);
         } catch (ConduitAPIException e) {
             printStackTrace(e);
-            failTask();
+            if (!e.isTransient() || !queueMessages(parts, next)) {
+                failTask();
+            }
         } catch (IOException e) {
             printStackTrace(e);
-            failTask();
+            if (!queueMessages(parts, next)) {
+                failTask();
+            }
         }
     }
 
@@ -82,12 +133,13 @@ public class SendHarbormasterResultTask extends Task {
     /**
      * Try to send a message to harbormaster
      *
+     * @param messageType the type of message to send
      * @param unitResults the unit testing results to send
      * @param coverage the coverage data to send
      * @return false if an error was encountered
      */
-    private boolean sendMessage(UnitResults unitResults, Map<String, String> coverage, LintResults lintResults) throws
-            IOException, ConduitAPIException {
+    private boolean sendMessage(MessageType messageType, UnitResults unitResults, Map<String, String> coverage,
+            LintResults lintResults) throws IOException, ConduitAPIException {
         JSONObject result = diffClient.sendHarbormasterMessage(phid, messageType, unitResults, coverage,
                 lintResults);
 
@@ -101,8 +153,111 @@ public class SendHarbormasterResultTask extends Task {
         return true;
     }
 
+    /**
+     * Leave the messages not sent yet in the controller's outbox, to be sent once Phabricator is back
+     *
+     * @param parts the parts of the results
+     * @param next the first part not sent yet, or the number of parts if only the final message is left
+     * @return whether the messages were queued
+     */
+    private boolean queueMessages(List<Part> parts, int next) {
+        try {
+            if (parts.size() <= 1 && next == 0) {
+                if (!diffClient.queueHarbormasterMessage(phid, messageType, unitResults, coverage, lintResults)) {
+                    return false;
+                }
+            } else {
+                for (Part part : parts.subList(next, parts.size())) {
+                    if (!diffClient.queueHarbormasterMessage(phid, MessageType.work, part.unitResults, part.coverage,
+                            part.lintResults)) {
+                        return false;
+                    }
+                }
+                if (!diffClient.queueHarbormasterMessage(phid, messageType, null, null, null)) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            printStackTrace(e);
+            return false;
+        }
+        info("Phabricator is unavailable, the Harbormaster results will be sent once it is back");
+        this.result = Result.SUCCESS;
+        return true;
+    }
+
+    /**
+     * Split the results into parts that each fit in a message, keeping the order of the results
+     *
+     * @return the parts, just one if everything fits in a single message
+     */
+    private List<Part> split() {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(new Part());
+        if (unitResults != null) {
+            for (UnitResult result : unitResults.getResults()) {
+                fit(parts, HarbormasterClient.getEncodedSize(result.toHarbormaster().toString())).addUnitResult(result);
+            }
+        }
+        if (lintResults != null) {
+            for (LintResult result : lintResults.getResults()) {
+                fit(parts, HarbormasterClient.getEncodedSize(result.toHarbormaster().toString())).addLintResult(result);
+            }
+        }
+        if (coverage != null) {
+            for (Map.Entry<String, String> file : coverage.entrySet()) {
+                long size = HarbormasterClient.getEncodedSize(JSONUtils.quote(file.getKey()))
+                        + HarbormasterClient.getEncodedSize(JSONUtils.quote(file.getValue())) + COVERAGE_ENTRY_OVERHEAD;
+                fit(parts, size).addCoverage(file.getKey(), file.getValue());
+            }
+        }
+        return parts;
+    }
+
+    private Part fit(List<Part> parts, long size) {
+        Part part = parts.get(parts.size() - 1);
+        if (part.size > 0 && part.size + size > maxMessageSize) {
+            part = new Part();
+            parts.add(part);
+        }
+        part.size += size;
+        return part;
+    }
+
     private void failTask() {
         info("Unable to post to Harbormaster");
         result = result.FAILURE;
     }
+
+    /**
+     * Some of the results, small enough to be sent in one message
+     */
+    private static final class Part {
+
+        private UnitResults unitResults;
+        private LintResults lintResults;
+        private Map<String, String> coverage;
+        private long size;
+
+        void addUnitResult(UnitResult result) {
+            if (unitResults == null) {
+                unitResults = new UnitResults();
+            }
+            unitResults.add(result);
+        }
+
+        void addLintResult(LintResult result) {
+            if (lintResults == null) {
+                lintResults = new LintResults();
+            }
+            lintResults.add(result);
+        }
+
+        void addCoverage(String file, String lineCoverage) {
+            if (coverage == null) {
+                coverage = new LinkedHashMap<String, String>();
+            }
+            coverage.put(file, lineCoverage);
+        }
+    }
 }
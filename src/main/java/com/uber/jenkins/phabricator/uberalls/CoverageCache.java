@@ -0,0 +1,137 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.uberalls;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller-wide LRU cache of coverage looked up from uberalls, keyed by server, repository and sha. Many diffs
+ * share the same base commit, so this saves asking uberalls for the same parent coverage over and over.
+ *
+ * Missing coverage is cached for a shorter time than found coverage, since the parent may still be building.
+ * Stale entries are revalidated with a conditional request when the server sent an ETag or Last-Modified header.
+ * Coverage recorded through this controller evicts the entry for its sha right away.
+ */
+final class CoverageCache {
+
+    static final CoverageCache INSTANCE = new CoverageCache(
+            Integer.getInteger(CoverageCache.class.getName() + ".maxEntries", 1000),
+            Long.getLong(CoverageCache.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(10)),
+            Long.getLong(CoverageCache.class.getName() + ".notFoundTtl", TimeUnit.MINUTES.toMillis(1)));
+
+    private final long ttlMillis;
+    private final long notFoundTtlMillis;
+    private final Map<String, Entry> entries;
+
+    CoverageCache(final int maxEntries, long ttlMillis, long notFoundTtlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.notFoundTtlMillis = notFoundTtlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static String key(String baseURL, String repository, String sha) {
+        return baseURL + '\n' + repository + '\n' + sha;
+    }
+
+    /**
+     * @return the cached entry, which may be stale, or null if there is none
+     */
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    synchronized void putFound(String key, String body, HttpResponse response, long now) {
+        entries.put(key, new Entry(body, getHeader(response, HttpHeaders.ETAG),
+                getHeader(response, HttpHeaders.LAST_MODIFIED), now + ttlMillis));
+    }
+
+    synchronized void putNotFound(String key, long now) {
+        entries.put(key, new Entry(null, null, null, now + notFoundTtlMillis));
+    }
+
+    /**
+     * Mark an entry as fresh again after the server confirmed it has not changed
+     */
+    synchronized void putRevalidated(String key, Entry entry, long now) {
+        entries.put(key, new Entry(entry.body, entry.etag, entry.lastModified,
+                now + (entry.body == null ? notFoundTtlMillis : ttlMillis)));
+    }
+
+    /**
+     * Forget the coverage of a sha, e.g. once it has been recorded again
+     */
+    synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        return response.containsHeader(name) ? response.getFirstHeader(name).getValue() : null;
+    }
+
+    static final class Entry {
+        private final String body;
+        private final String etag;
+        private final String lastModified;
+        private final long expiresAt;
+
+        private Entry(String body, String etag, String lastModified, long expiresAt) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the coverage json, or null if uberalls has no coverage for the sha
+         */
+        String getBody() {
+            return body;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        void addValidators(HttpRequestBase request) {
+            if (etag != null) {
+                request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+    }
+}
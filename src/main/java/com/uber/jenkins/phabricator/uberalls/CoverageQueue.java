@@ -0,0 +1,160 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.uberalls;
+
+import com.uber.jenkins.phabricator.utils.DurableQueue;
+
+import net.sf.json.JSONObject;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import jenkins.model.Jenkins;
+
+/**
+ * Write-behind queue for coverage recorded to uberalls. Records are appended to a journal under JENKINS_HOME before
+ * the build moves on, then sent in the background, retrying with backoff for up to a day while uberalls is unavailable.
+ * Records still in the journal when Jenkins restarts are sent once it is back up.
+ */
+public final class CoverageQueue {
+
+    static final String JOURNAL_NAME = "phabricator-uberalls-queue.log";
+
+    private static final Logger LOGGER = Logger.getLogger(CoverageQueue.class.getName());
+    private static final int BATCH_SIZE = Integer.getInteger(CoverageQueue.class.getName() + ".batchSize", 50);
+    private static final long MAX_RETRY_DELAY_MS = Long.getLong(CoverageQueue.class.getName() + ".maxRetryDelay",
+            TimeUnit.MINUTES.toMillis(10));
+    private static final int MAX_ATTEMPTS = Integer.getInteger(CoverageQueue.class.getName() + ".maxAttempts", 100);
+    private static final long MAX_AGE_MS = Long.getLong(CoverageQueue.class.getName() + ".maxAge",
+            TimeUnit.DAYS.toMillis(1));
+    private static final String URL_KEY = "url";
+    private static final String RECORD_KEY = "record";
+
+    private static CoverageQueue instance;
+
+    private final Sender sender;
+    private final DurableQueue queue;
+
+    interface Sender {
+        StatusLine send(String baseURL, JSONObject record) throws URISyntaxException, IOException;
+    }
+
+    CoverageQueue(File journal, Sender sender, ScheduledExecutorService executor) {
+        this.sender = sender;
+        this.queue = new DurableQueue("uberalls queue", journal, URL_KEY, BATCH_SIZE, MAX_RETRY_DELAY_MS,
+                MAX_ATTEMPTS, MAX_AGE_MS, this::send, executor);
+    }
+
+    /**
+     * @return the queue of this controller, or null when not running in Jenkins
+     */
+    static synchronized CoverageQueue get() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        File journal = new File(jenkins.getRootDir(), JOURNAL_NAME);
+        if (instance == null || !instance.queue.getJournal().equals(journal)) {
+            instance = new CoverageQueue(journal,
+                    (baseURL, record) -> new UberallsClient(baseURL, null, null, null).postCoverage(record),
+                    Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "phabricator-uberalls-queue");
+                        thread.setDaemon(true);
+                        return thread;
+                    }));
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Send the coverage that was still queued when Jenkins was stopped
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replay() {
+        get();
+    }
+
+    /**
+     * Durably queue a coverage record to be sent to uberalls
+     *
+     * @param baseURL The uberalls URL
+     * @param record The coverage record
+     * @throws IOException if the record could not be written to the journal
+     */
+    void add(String baseURL, JSONObject record) throws IOException {
+        JSONObject entry = new JSONObject();
+        entry.put(URL_KEY, baseURL);
+        entry.put(RECORD_KEY, record);
+        queue.add(entry);
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    void load() {
+        queue.load();
+    }
+
+    /**
+     * Send the oldest queued records for each uberalls, stopping at the first one that should be retried
+     */
+    void drain() {
+        queue.drain();
+    }
+
+    /**
+     * @return false if the record should be retried later
+     */
+    private boolean send(JSONObject entry) {
+        String baseURL = entry.getString(URL_KEY);
+        try {
+            StatusLine status = sender.send(baseURL, entry.getJSONObject(RECORD_KEY));
+            int code = status.getStatusCode();
+            if (code == HttpStatus.SC_OK) {
+                return true;
+            }
+            if (code >= 400 && code < 500 && code != HttpStatus.SC_REQUEST_TIMEOUT && code != 429) {
+                LOGGER.warning("Dropping coverage record rejected by uberalls at " + baseURL + ": " + status);
+                return true;
+            }
+            LOGGER.info("Failed to record coverage to uberalls at " + baseURL + ", will retry: " + status);
+        } catch (URISyntaxException e) {
+            LOGGER.log(Level.WARNING, "Dropping coverage record for invalid uberalls URL " + baseURL, e);
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.INFO, "Failed to record coverage to uberalls at " + baseURL + ", will retry", e);
+        }
+        return false;
+    }
+}
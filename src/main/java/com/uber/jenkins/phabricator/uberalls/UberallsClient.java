@@ -22,29 +22,47 @@ package com.uber.jenkins.phabricator.uberalls;
 
 import com.uber.jenkins.phabricator.coverage.CodeCoverageMetrics;
 import com.uber.jenkins.phabricator.utils.CommonUtils;
+import com.uber.jenkins.phabricator.utils.HttpClientPool;
 import com.uber.jenkins.phabricator.utils.Logger;
+import com.uber.jenkins.phabricator.utils.RequestListener;
+import com.uber.jenkins.phabricator.utils.RequestMetrics;
+import com.uber.jenkins.phabricator.utils.StreamingJsonFilter;
 
 import net.sf.json.JSON;
 import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
 import net.sf.json.groovy.JsonSlurper;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * A per-build view of an uberalls server. Instances are cheap and hold the build's logger and branch, while the
+ * underlying connections are pooled and shared across builds.
+ */
 public class UberallsClient {
 
     public static final String PACKAGE_COVERAGE_KEY = "packageCoverage";
@@ -55,13 +73,20 @@ public class UberallsClient {
     public static final String CONDITIONAL_COVERAGE_KEY = "conditionalCoverage";
     public static final String LINES_COVERED_KEY = "linesCovered";
     public static final String LINES_TESTED_KEY = "linesTested";
+    private static final Set<String> COVERAGE_KEYS = new HashSet<String>(Arrays.asList(PACKAGE_COVERAGE_KEY,
+            FILES_COVERAGE_KEY, CLASSES_COVERAGE_KEY, METHOD_COVERAGE_KEY, LINE_COVERAGE_KEY, CONDITIONAL_COVERAGE_KEY,
+            LINES_COVERED_KEY, LINES_TESTED_KEY));
 
     private static final String TAG = "uberalls-client";
+    private static final String GET_COVERAGE_OPERATION = "getCoverage";
+    private static final String RECORD_COVERAGE_OPERATION = "recordCoverage";
+    private static final HttpClientPool CLIENTS = new HttpClientPool("uberalls");
 
     private final String baseURL;
     private final Logger logger;
     private final String repository;
     private final String branch;
+    private volatile RequestListener listener;
 
     public UberallsClient(String baseURL, Logger logger, String repository, String branch) {
         this.baseURL = baseURL;
@@ -70,6 +95,15 @@ public class UberallsClient {
         this.branch = branch;
     }
 
+    /**
+     * Also tell a listener about each request made to uberalls
+     *
+     * @param listener The listener, or null to only record the global metrics
+     */
+    public void setRequestListener(RequestListener listener) {
+        this.listener = listener;
+    }
+
     public String getBaseURL() {
         return this.baseURL;
     }
@@ -105,33 +139,10 @@ public class UberallsClient {
 
     public boolean recordCoverage(String sha, CodeCoverageMetrics codeCoverageMetrics) {
         if (codeCoverageMetrics != null) {
-            JSONObject params = new JSONObject();
-            params.put("sha", sha);
-            params.put("branch", branch);
-            params.put("repository", repository);
-            params.put(PACKAGE_COVERAGE_KEY, codeCoverageMetrics.getPackageCoveragePercent());
-            params.put(FILES_COVERAGE_KEY, codeCoverageMetrics.getFilesCoveragePercent());
-            params.put(CLASSES_COVERAGE_KEY, codeCoverageMetrics.getClassesCoveragePercent());
-            params.put(METHOD_COVERAGE_KEY, codeCoverageMetrics.getMethodCoveragePercent());
-            params.put(LINE_COVERAGE_KEY, codeCoverageMetrics.getLineCoveragePercent());
-            params.put(CONDITIONAL_COVERAGE_KEY, codeCoverageMetrics.getConditionalCoveragePercent());
-            params.put(LINES_COVERED_KEY, codeCoverageMetrics.getLinesCovered());
-            params.put(LINES_TESTED_KEY, codeCoverageMetrics.getLinesTested());
-
             try {
-                CloseableHttpClient client = getClient();
-                HttpPost request = new HttpPost(getBuilder().build().toString());
-                request.addHeader("Content-Type", "application/json");
-                StringEntity requestEntity = new StringEntity(
-                        params.toString(),
-                        ContentType.APPLICATION_JSON.toString(),
-                        "UTF-8");
-                request.setEntity(requestEntity);
-                CloseableHttpResponse response = client.execute(request);
-                int statusCode = response.getStatusLine().getStatusCode();
-
-                if (statusCode != HttpStatus.SC_OK) {
-                    logger.info(TAG, "Call failed: " + response.getStatusLine());
+                StatusLine status = postCoverage(getCoverageRecord(sha, codeCoverageMetrics));
+                if (status.getStatusCode() != HttpStatus.SC_OK) {
+                    logger.info(TAG, "Call failed: " + status);
                     return false;
                 }
                 return true;
@@ -150,7 +161,76 @@ public class UberallsClient {
         return false;
     }
 
+    /**
+     * Record coverage in the background through the controller's durable queue, so the build doesn't wait on
+     * uberalls. Falls back to recording it right away when there is no queue, e.g. outside of Jenkins.
+     *
+     * @param sha The commit the coverage is for
+     * @param codeCoverageMetrics The coverage to record
+     * @return whether the coverage was queued, or recorded
+     */
+    public boolean queueCoverage(String sha, CodeCoverageMetrics codeCoverageMetrics) {
+        CoverageQueue queue = CoverageQueue.get();
+        if (queue == null || codeCoverageMetrics == null) {
+            return recordCoverage(sha, codeCoverageMetrics);
+        }
+        try {
+            queue.add(baseURL, getCoverageRecord(sha, codeCoverageMetrics));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace(logger.getStream());
+            return recordCoverage(sha, codeCoverageMetrics);
+        }
+    }
+
+    JSONObject getCoverageRecord(String sha, CodeCoverageMetrics codeCoverageMetrics) {
+        JSONObject params = new JSONObject();
+        params.put("sha", sha);
+        params.put("branch", branch);
+        params.put("repository", repository);
+        params.put(PACKAGE_COVERAGE_KEY, codeCoverageMetrics.getPackageCoveragePercent());
+        params.put(FILES_COVERAGE_KEY, codeCoverageMetrics.getFilesCoveragePercent());
+        params.put(CLASSES_COVERAGE_KEY, codeCoverageMetrics.getClassesCoveragePercent());
+        params.put(METHOD_COVERAGE_KEY, codeCoverageMetrics.getMethodCoveragePercent());
+        params.put(LINE_COVERAGE_KEY, codeCoverageMetrics.getLineCoveragePercent());
+        params.put(CONDITIONAL_COVERAGE_KEY, codeCoverageMetrics.getConditionalCoveragePercent());
+        params.put(LINES_COVERED_KEY, codeCoverageMetrics.getLinesCovered());
+        params.put(LINES_TESTED_KEY, codeCoverageMetrics.getLinesTested());
+        return params;
+    }
+
+    StatusLine postCoverage(JSONObject record) throws URISyntaxException, IOException {
+        CloseableHttpClient client = getClient();
+        HttpPost request = new HttpPost(getBuilder().build().toString());
+        request.addHeader("Content-Type", "application/json");
+        StringEntity requestEntity = new StringEntity(
+                record.toString(),
+                ContentType.APPLICATION_JSON.toString(),
+                "UTF-8");
+        request.setEntity(requestEntity);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            failed = response.getStatusLine().getStatusCode() != HttpStatus.SC_OK;
+            if (!failed) {
+                // Taken from the record, since queued records are sent by a client without a repository
+                CoverageCache.INSTANCE.invalidate(CoverageCache.key(baseURL, record.optString("repository", null),
+                        record.optString("sha", null)));
+            }
+            return response.getStatusLine();
+        } finally {
+            record(RECORD_COVERAGE_OPERATION, System.nanoTime() - start, requestEntity.getContentLength(), -1, failed);
+        }
+    }
+
     public String getCoverage(String sha) {
+        String cacheKey = CoverageCache.key(baseURL, repository, sha);
+        CoverageCache.Entry cached = CoverageCache.INSTANCE.get(cacheKey);
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            return cached.getBody();
+        }
+
         URIBuilder builder;
         try {
             builder = getBuilder()
@@ -159,14 +239,39 @@ public class UberallsClient {
 
             CloseableHttpClient client = getClient();
             HttpGet request = new HttpGet(builder.build().toString());
-            CloseableHttpResponse response = client.execute(request);
-            int statusCode = response.getStatusLine().getStatusCode();
+            if (cached != null) {
+                cached.addValidators(request);
+            }
+            long start = System.nanoTime();
+            long responseBytes = -1;
+            boolean failed = true;
+            try (CloseableHttpResponse response = client.execute(request)) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (response.getEntity() != null) {
+                    responseBytes = response.getEntity().getContentLength();
+                }
+                // Missing coverage is an answer too, only errors count as failures
+                failed = statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
 
-            if (statusCode != HttpStatus.SC_OK) {
-                logger.info(TAG, "Call failed: " + response.getStatusLine().toString());
-                return null;
+                if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                    EntityUtils.consume(response.getEntity());
+                    CoverageCache.INSTANCE.putRevalidated(cacheKey, cached, System.currentTimeMillis());
+                    return cached.getBody();
+                }
+                if (statusCode == HttpStatus.SC_NOT_FOUND) {
+                    CoverageCache.INSTANCE.putNotFound(cacheKey, System.currentTimeMillis());
+                }
+                if (statusCode != HttpStatus.SC_OK) {
+                    EntityUtils.consume(response.getEntity());
+                    logger.info(TAG, "Call failed: " + response.getStatusLine().toString());
+                    return null;
+                }
+                String coverage = readCoverage(response.getEntity());
+                CoverageCache.INSTANCE.putFound(cacheKey, coverage, response, System.currentTimeMillis());
+                return coverage;
+            } finally {
+                record(GET_COVERAGE_OPERATION, System.nanoTime() - start, -1, responseBytes, failed);
             }
-            return EntityUtils.toString(response.getEntity());
         } catch (HttpResponseException e) {
             if (e.getStatusCode() != 404) {
                 e.printStackTrace(logger.getStream());
@@ -177,12 +282,44 @@ public class UberallsClient {
         return null;
     }
 
+    /**
+     * Count a request in the global metrics and tell the build's listener about it, if there is one
+     */
+    private void record(String operation, long nanos, long requestBytes, long responseBytes, boolean failed) {
+        RequestMetrics.UBERALLS.record(operation, nanos, requestBytes, responseBytes, failed);
+        RequestListener listener = this.listener;
+        if (listener != null) {
+            listener.requestCompleted(operation, nanos, requestBytes, responseBytes, failed);
+        }
+    }
+
+    /**
+     * Read only the coverage fields of a response, so that's all that gets cached
+     */
+    private static String readCoverage(HttpEntity entity) throws IOException {
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        try (Reader reader = new InputStreamReader(entity.getContent(),
+                charset != null ? charset : StandardCharsets.UTF_8)) {
+            return StreamingJsonFilter.filter(reader, path -> !COVERAGE_KEYS.contains(path));
+        }
+    }
+
     private URIBuilder getBuilder() throws URISyntaxException {
         return new URIBuilder(baseURL);
     }
 
-    public CloseableHttpClient getClient() {
-        return HttpClients.createDefault();
+    /**
+     * Get the pooled client shared by every build talking to this uberalls server
+     *
+     * @return the client, which must not be closed
+     * @throws URISyntaxException if the uberalls URL has no host
+     */
+    public CloseableHttpClient getClient() throws URISyntaxException {
+        HttpHost gateway = URIUtils.extractHost(getBuilder().build());
+        if (gateway == null) {
+            throw new URISyntaxException(baseURL, "No host in uberalls URL");
+        }
+        return CLIENTS.getClient(gateway);
     }
 
     public boolean isConfigured() {
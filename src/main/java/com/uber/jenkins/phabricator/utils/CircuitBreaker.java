@@ -0,0 +1,95 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a service after several failures in a row, so callers fail fast instead of waiting on a service that
+ * is down. Once the breaker has been open for a while, a single trial call is let through: if it works the breaker
+ * closes again, otherwise it stays open for another while.
+ */
+public final class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+    private int failures;
+    private long openUntil;
+    private boolean trialInFlight;
+
+    /**
+     * @param failureThreshold The number of failures in a row that opens the breaker
+     * @param openMillis How long the breaker stays open before letting a trial call through
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this(failureThreshold, openMillis, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Check whether a call may be made. Every call that is allowed must be followed by either
+     * {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @return whether the call may be made
+     */
+    public synchronized boolean allowRequest() {
+        if (failures < failureThreshold) {
+            return true;
+        }
+        if (trialInFlight || clock.getAsLong() < openUntil) {
+            return false;
+        }
+        trialInFlight = true;
+        return true;
+    }
+
+    /**
+     * Record that the service answered, which closes the breaker
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    /**
+     * Record that the service failed, which opens the breaker once there have been enough failures in a row
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        trialInFlight = false;
+        if (failures >= failureThreshold) {
+            openUntil = clock.getAsLong() + openMillis;
+        }
+    }
+
+    /**
+     * @return whether calls are currently being refused
+     */
+    public synchronized boolean isOpen() {
+        return failures >= failureThreshold && (trialInFlight || clock.getAsLong() < openUntil);
+    }
+}
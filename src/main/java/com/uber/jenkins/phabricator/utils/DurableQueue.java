@@ -0,0 +1,314 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of entries that are appended to a journal before they are sent in the background, one JSON object per line.
+ * Entries for the same destination are sent in order, and only removed from the journal once sent. A destination
+ * that fails is retried with backoff from its first entry that failed, without holding up the others, and an entry is
+ * given up on once it has failed too many times or has been queued for too long. Loading the journal again after a
+ * restart sends whatever was left.
+ */
+public final class DurableQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(DurableQueue.class.getName());
+    private static final long INITIAL_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
+    // Kept in each entry next to what the sender reads, the attempts are written out whenever the journal is
+    // compacted
+    private static final String QUEUED_AT_KEY = "queuedAt";
+    private static final String ATTEMPTS_KEY = "attempts";
+
+    private final String name;
+    private final File journal;
+    private final String destinationKey;
+    private final int batchSize;
+    private final long maxRetryDelayMs;
+    private final int maxAttempts;
+    private final long maxAgeMs;
+    private final Sender sender;
+    private final ScheduledExecutorService executor;
+    // Guarded by this, mirrors the journal
+    private final Deque<JSONObject> pending = new ArrayDeque<>();
+    // Guarded by this, destinations that are failing
+    private final Map<String, Backoff> backoffs = new HashMap<>();
+    private boolean scheduled;
+    private long scheduledAt;
+    private ScheduledFuture<?> next;
+
+    public interface Sender {
+        /**
+         * @param entry The entry to send
+         * @return false if the entry should be retried later, true once it was sent or can never be
+         */
+        boolean send(JSONObject entry);
+    }
+
+    private static final class Backoff {
+        private int failedAttempts;
+        private long retryAt;
+    }
+
+    /**
+     * @param name What the queue holds, for logging
+     * @param journal The file the entries are kept in
+     * @param destinationKey The member of each entry naming where it is sent, entries are only ordered within one
+     * @param batchSize How many entries to send before the journal is compacted
+     * @param maxRetryDelayMs The longest wait between two attempts while sending to a destination fails
+     * @param maxAttempts How many times an entry is tried before it is given up on
+     * @param maxAgeMs How long an entry is retried for before it is given up on
+     * @param sender Sends each entry
+     * @param executor Runs the sending in the background
+     */
+    public DurableQueue(String name, File journal, String destinationKey, int batchSize, long maxRetryDelayMs,
+            int maxAttempts, long maxAgeMs, Sender sender, ScheduledExecutorService executor) {
+        this.name = name;
+        this.journal = journal;
+        this.destinationKey = destinationKey;
+        this.batchSize = batchSize;
+        this.maxRetryDelayMs = maxRetryDelayMs;
+        this.maxAttempts = maxAttempts;
+        this.maxAgeMs = maxAgeMs;
+        this.sender = sender;
+        this.executor = executor;
+    }
+
+    public File getJournal() {
+        return journal;
+    }
+
+    /**
+     * Durably queue an entry, which is sent once the entries before it for the same destination are
+     *
+     * @param entry The entry
+     * @throws IOException if the entry could not be written to the journal
+     */
+    public synchronized void add(JSONObject entry) throws IOException {
+        entry.put(QUEUED_AT_KEY, System.currentTimeMillis());
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            out.write((entry.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        pending.add(entry);
+        schedule(getDelay(entry, System.currentTimeMillis()));
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Read the entries left in the journal and start sending them
+     */
+    public synchronized void load() {
+        pending.clear();
+        if (journal.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        pending.add(JSONObject.fromObject(line));
+                    } catch (JSONException e) {
+                        // A write torn by a crash, nothing to send. The line isn't logged since it may hold secrets
+                        LOGGER.log(Level.WARNING, "Skipping unreadable entry of the " + name);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the " + name + " " + journal, e);
+            }
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.info("Replaying " + pending.size() + " entries of the " + name);
+            schedule(0);
+        }
+    }
+
+    /**
+     * Send the oldest entries of every destination now, in order, stopping at the first one that should be retried
+     */
+    public void drain() {
+        drain(false);
+    }
+
+    /**
+     * @param dueOnly Whether to skip destinations that are still backing off
+     */
+    private void drain(boolean dueOnly) {
+        long now = System.currentTimeMillis();
+        List<JSONObject> entries;
+        Set<String> skipped = new HashSet<>();
+        synchronized (this) {
+            scheduled = false;
+            entries = new ArrayList<>(pending);
+            if (dueOnly) {
+                for (Map.Entry<String, Backoff> backoff : backoffs.entrySet()) {
+                    if (backoff.getValue().retryAt > now) {
+                        skipped.add(backoff.getKey());
+                    }
+                }
+            }
+        }
+
+        Set<JSONObject> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<String> succeeded = new HashSet<>();
+        Set<String> failed = new HashSet<>();
+        int attempts = 0;
+        for (JSONObject entry : entries) {
+            if (attempts >= batchSize) {
+                break;
+            }
+            String destination = entry.optString(destinationKey);
+            if (skipped.contains(destination) || failed.contains(destination)) {
+                continue;
+            }
+            attempts++;
+            if (send(entry)) {
+                done.add(entry);
+                succeeded.add(destination);
+            } else {
+                failed.add(destination);
+                if (giveUp(entry, destination, now)) {
+                    done.add(entry);
+                }
+            }
+        }
+
+        synchronized (this) {
+            succeeded.removeAll(failed);
+            backoffs.keySet().removeAll(succeeded);
+            for (String destination : failed) {
+                Backoff backoff = backoffs.computeIfAbsent(destination, d -> new Backoff());
+                backoff.failedAttempts++;
+                backoff.retryAt = now + getRetryDelay(backoff.failedAttempts, maxRetryDelayMs);
+            }
+            if (!done.isEmpty()) {
+                pending.removeIf(done::contains);
+                rewriteJournal();
+            }
+            if (!pending.isEmpty()) {
+                long delay = Long.MAX_VALUE;
+                for (JSONObject entry : pending) {
+                    delay = Math.min(delay, getDelay(entry, now));
+                }
+                schedule(delay);
+            }
+        }
+    }
+
+    private boolean send(JSONObject entry) {
+        try {
+            return sender.send(entry);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to send an entry of the " + name + ", will retry", e);
+            return false;
+        }
+    }
+
+    /**
+     * Count a failed attempt at sending an entry, and tell whether it is time to give up on it
+     */
+    private boolean giveUp(JSONObject entry, String destination, long now) {
+        int attempts = entry.optInt(ATTEMPTS_KEY) + 1;
+        entry.put(ATTEMPTS_KEY, attempts);
+        long age = now - entry.optLong(QUEUED_AT_KEY, now);
+        if (attempts < maxAttempts && age < maxAgeMs) {
+            return false;
+        }
+        LOGGER.warning(String.format("Giving up on an entry of the %s for %s after %d attempts over %d minutes",
+                name, destination, attempts, TimeUnit.MILLISECONDS.toMinutes(age)));
+        return true;
+    }
+
+    /**
+     * @return how long to wait before sending an entry, depending on whether its destination is backing off
+     */
+    private long getDelay(JSONObject entry, long now) {
+        Backoff backoff = backoffs.get(entry.optString(destinationKey));
+        return backoff == null ? 0 : Math.max(0, backoff.retryAt - now);
+    }
+
+    /**
+     * Make sure a drain runs within the delay, moving the next one sooner if it is due later
+     */
+    private void schedule(long delayMs) {
+        long at = System.currentTimeMillis() + delayMs;
+        if (scheduled && scheduledAt <= at) {
+            return;
+        }
+        if (next != null) {
+            next.cancel(false);
+        }
+        scheduled = true;
+        scheduledAt = at;
+        next = executor.schedule(() -> drain(true), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void rewriteJournal() {
+        File tmp = new File(journal.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp);
+                    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                for (JSONObject entry : pending) {
+                    writer.write(entry.toString());
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Entries already sent stay in the journal and are sent again after a restart
+            LOGGER.log(Level.WARNING, "Failed to compact the " + name + " " + journal, e);
+        }
+    }
+
+    static long getRetryDelay(int failedAttempts, long maxRetryDelayMs) {
+        return Math.min(maxRetryDelayMs, INITIAL_RETRY_DELAY_MS << Math.min(failedAttempts - 1, 16));
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled HTTP clients shared by every build, one per gateway (scheme, host and port), so calls to the same server
+ * reuse kept-alive connections instead of opening a new connection, and TLS session, for every request.
+ *
+ * Timeouts and pool sizes can be tuned with system properties named after the pool, for example
+ * {@code -Dcom.uber.jenkins.phabricator.utils.HttpClientPool.conduit.socketTimeout=60000}, or for a single host by
+ * naming it after the pool, for example
+ * {@code -Dcom.uber.jenkins.phabricator.utils.HttpClientPool.conduit.phabricator.example.com.socketTimeout=300000}
+ * for a Phabricator that takes long to process large Harbormaster results:
+ * <ul>
+ * <li>connectTimeout: milliseconds to wait for a connection to be established</li>
+ * <li>socketTimeout: milliseconds to wait for data</li>
+ * <li>connectionRequestTimeout: milliseconds to wait for a free connection from the pool</li>
+ * <li>maxConnections: the maximum number of connections to a gateway</li>
+ * <li>keepAlive: seconds to keep an idle connection if the server doesn't say how long</li>
+ * <li>idleTimeout: seconds after which idle connections are closed</li>
+ * </ul>
+ */
+public final class HttpClientPool {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_SOCKET_TIMEOUT_MS = 60000;
+    private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final int DEFAULT_KEEP_ALIVE_S = 30;
+    private static final int DEFAULT_IDLE_TIMEOUT_S = 60;
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+    private final String name;
+    private final ConcurrentMap<HttpHost, CloseableHttpClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * @param name the name of the pool, used to look up its settings
+     */
+    public HttpClientPool(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the shared client for a gateway, creating it on first use
+     *
+     * @param gateway the scheme, host and port of the server
+     * @return the client, which must not be closed by callers
+     */
+    public CloseableHttpClient getClient(HttpHost gateway) {
+        return clients.computeIfAbsent(gateway, this::createClient);
+    }
+
+    private CloseableHttpClient createClient(HttpHost gateway) {
+        int maxConnections = getSetting(gateway, "maxConnections", DEFAULT_MAX_CONNECTIONS);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // Servers and load balancers may drop idle connections without telling us
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(getSetting(gateway, "connectTimeout", DEFAULT_CONNECT_TIMEOUT_MS))
+                .setSocketTimeout(getSetting(gateway, "socketTimeout", DEFAULT_SOCKET_TIMEOUT_MS))
+                .setConnectionRequestTimeout(getSetting(gateway, "connectionRequestTimeout",
+                        DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS))
+                .build();
+
+        long keepAliveMs = TimeUnit.SECONDS.toMillis(getSetting(gateway, "keepAlive", DEFAULT_KEEP_ALIVE_S));
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+                            response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMs) : keepAliveMs;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(getSetting(gateway, "idleTimeout", DEFAULT_IDLE_TIMEOUT_S), TimeUnit.SECONDS)
+                .useSystemProperties()
+                .build();
+    }
+
+    /**
+     * @return the setting for the host of a gateway if there is one, otherwise the setting for the whole pool
+     */
+    int getSetting(HttpHost gateway, String setting, int defaultValue) {
+        String prefix = HttpClientPool.class.getName() + "." + name + ".";
+        return Integer.getInteger(prefix + gateway.getHostName() + "." + setting,
+                Integer.getInteger(prefix + setting, defaultValue));
+    }
+}
@@ -0,0 +1,39 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+/**
+ * Told about each request a client makes, in addition to the global {@link RequestMetrics}, e.g. to break down the
+ * time a single build spends on its requests.
+ */
+public interface RequestListener {
+
+    /**
+     * Called once a request is done, whether it succeeded or not
+     *
+     * @param operation The operation, e.g. the conduit method
+     * @param nanos How long the request took
+     * @param requestBytes The size of the request body, or -1 if there was none or it is unknown
+     * @param responseBytes The size of the response body, or -1 if there was none or it is unknown
+     * @param failed Whether the request failed
+     */
+    void requestCompleted(String operation, long nanos, long requestBytes, long responseBytes, boolean failed);
+}
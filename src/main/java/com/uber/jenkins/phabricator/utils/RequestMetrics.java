@@ -0,0 +1,203 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Counts and latency and payload size histograms of the requests made to a service, by operation. Recording only adds
+ * to striped counters, so the builds making requests never contend on a lock. The totals are written in the
+ * Prometheus text format.
+ */
+public final class RequestMetrics {
+
+    public static final RequestMetrics CONDUIT = new RequestMetrics("phabricator_conduit", "method", "Conduit");
+    public static final RequestMetrics UBERALLS = new RequestMetrics("phabricator_uberalls", "operation", "Uberalls");
+
+    private static final long[] LATENCY_BUCKETS_NANOS = millisToNanos(5, 10, 25, 50, 100, 250, 500, 1000, 2500,
+            5000, 10000, 30000, 60000);
+    private static final long[] SIZE_BUCKETS_BYTES = {1 << 10, 1 << 12, 1 << 14, 1 << 16, 1 << 18, 1 << 20, 1 << 22,
+            1 << 24, 1 << 26};
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String prefix;
+    private final String label;
+    private final String service;
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+    RequestMetrics(String prefix, String label, String service) {
+        this.prefix = prefix;
+        this.label = label;
+        this.service = service;
+    }
+
+    /**
+     * Record a request
+     *
+     * @param operation The operation, e.g. the conduit method
+     * @param nanos How long the request took
+     * @param requestBytes The size of the request body, or -1 if there was none or it is unknown
+     * @param responseBytes The size of the response body, or -1 if there was none or it is unknown
+     * @param failed Whether the request failed
+     */
+    public void record(String operation, long nanos, long requestBytes, long responseBytes, boolean failed) {
+        Operation metrics = operations.computeIfAbsent(operation, name -> new Operation());
+        metrics.requests.increment();
+        if (failed) {
+            metrics.errors.increment();
+        }
+        metrics.latency.observe(nanos);
+        if (requestBytes >= 0) {
+            metrics.requestSize.observe(requestBytes);
+        }
+        if (responseBytes >= 0) {
+            metrics.responseSize.observe(responseBytes);
+        }
+    }
+
+    /**
+     * Write the metrics of all services in the Prometheus text format
+     *
+     * @param writer Where to write the metrics
+     * @throws IOException If the metrics could not be written
+     */
+    public static void writeAll(Writer writer) throws IOException {
+        CONDUIT.write(writer);
+        UBERALLS.write(writer);
+    }
+
+    void write(Writer writer) throws IOException {
+        // Sorted so the output is stable between scrapes
+        Map<String, Operation> sorted = new TreeMap<String, Operation>(operations);
+
+        writeHeader(writer, "requests_total", "counter", service + " requests made");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            writeSample(writer, "requests_total", entry.getKey(), null, entry.getValue().requests.sum());
+        }
+        writeHeader(writer, "errors_total", "counter", service + " requests that failed");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            writeSample(writer, "errors_total", entry.getKey(), null, entry.getValue().errors.sum());
+        }
+        writeHistogram(writer, "request_duration_seconds", service + " request latency", sorted,
+                operation -> operation.latency, NANOS_PER_SECOND);
+        writeHistogram(writer, "request_size_bytes", service + " request body size", sorted,
+                operation -> operation.requestSize, 1);
+        writeHistogram(writer, "response_size_bytes", service + " response body size", sorted,
+                operation -> operation.responseSize, 1);
+    }
+
+    /**
+     * @param scale What the recorded values are divided by to get the unit of the metric
+     */
+    private void writeHistogram(Writer writer, String name, String help, Map<String, Operation> sorted,
+            Function<Operation, Histogram> metric, double scale) throws IOException {
+        writeHeader(writer, name, "histogram", help);
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            Histogram histogram = metric.apply(entry.getValue());
+            long cumulative = 0;
+            for (int i = 0; i < histogram.bounds.length; i++) {
+                cumulative += histogram.counts[i].sum();
+                writeSample(writer, name + "_bucket", entry.getKey(), format(histogram.bounds[i] / scale),
+                        cumulative);
+            }
+            cumulative += histogram.counts[histogram.bounds.length].sum();
+            writeSample(writer, name + "_bucket", entry.getKey(), "+Inf", cumulative);
+            writer.write(prefix + "_" + name + "_sum{" + label + "=\"" + escape(entry.getKey()) + "\"} "
+                    + format(histogram.sum.sum() / scale) + "\n");
+            writeSample(writer, name + "_count", entry.getKey(), null, cumulative);
+        }
+    }
+
+    private void writeHeader(Writer writer, String name, String type, String help) throws IOException {
+        writer.write("# HELP " + prefix + "_" + name + " " + help + "\n");
+        writer.write("# TYPE " + prefix + "_" + name + " " + type + "\n");
+    }
+
+    private void writeSample(Writer writer, String name, String operation, String le, long value)
+            throws IOException {
+        writer.write(prefix + "_" + name + "{" + label + "=\"" + escape(operation) + "\"");
+        if (le != null) {
+            writer.write(",le=\"" + le + "\"");
+        }
+        writer.write("} " + value + "\n");
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static long[] millisToNanos(long... millis) {
+        long[] nanos = new long[millis.length];
+        for (int i = 0; i < millis.length; i++) {
+            nanos[i] = TimeUnit.MILLISECONDS.toNanos(millis[i]);
+        }
+        return nanos;
+    }
+
+    private static final class Operation {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final Histogram latency = new Histogram(LATENCY_BUCKETS_NANOS);
+        private final Histogram requestSize = new Histogram(SIZE_BUCKETS_BYTES);
+        private final Histogram responseSize = new Histogram(SIZE_BUCKETS_BYTES);
+    }
+
+    /**
+     * Counts of the values up to each bound, plus one for the values above all of them
+     */
+    private static final class Histogram {
+
+        private final long[] bounds;
+        private final LongAdder[] counts;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(long value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            counts[bucket >= 0 ? bucket : -bucket - 1].increment();
+            sum.add(value);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Smooths out the requests made to a service: a token bucket limits how many requests start per second, allowing a
+ * burst of up to a second's worth, and a cap limits how many are in flight at once. Callers queue in the order they
+ * arrive, and give up once they have waited longer than the timeout.
+ */
+public final class RequestThrottle {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final Semaphore inFlight;
+    private final long timeoutNanos;
+    private final LongSupplier nanoClock;
+    private long nextFreeNanos;
+
+    /**
+     * @param requestsPerSecond How many requests may start per second, or 0 for no limit
+     * @param maxInFlight How many requests may be in flight at once, or 0 for no limit
+     * @param timeoutMillis How long a request waits for its turn before giving up
+     */
+    public RequestThrottle(double requestsPerSecond, int maxInFlight, long timeoutMillis) {
+        this(requestsPerSecond, maxInFlight, timeoutMillis, System::nanoTime);
+    }
+
+    RequestThrottle(double requestsPerSecond, int maxInFlight, long timeoutMillis, LongSupplier nanoClock) {
+        if (requestsPerSecond > 0) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+            this.burstNanos = (long) (Math.max(1, Math.ceil(requestsPerSecond)) - 1) * intervalNanos;
+        } else {
+            this.intervalNanos = 0;
+            this.burstNanos = 0;
+        }
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight, true) : null;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.nanoClock = nanoClock;
+        this.nextFreeNanos = nanoClock.getAsLong() - burstNanos;
+    }
+
+    /**
+     * Wait for a turn to make a request. Every successful call must be followed by {@link #release()} once the
+     * request is done.
+     *
+     * @return whether the request may be made, false if the wait timed out
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public boolean acquire() throws InterruptedException {
+        long deadline = nanoClock.getAsLong() + timeoutNanos;
+        if (inFlight != null && !inFlight.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            long wait = reserve(deadline);
+            if (wait < 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(wait);
+            acquired = true;
+            return true;
+        } finally {
+            if (!acquired && inFlight != null) {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Mark a request made after {@link #acquire()} as done
+     */
+    public void release() {
+        if (inFlight != null) {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Take the next start time from the token bucket
+     *
+     * @param deadline The latest time the request may start at
+     * @return how long to wait before starting the request, or -1 if it couldn't start before the deadline
+     */
+    synchronized long reserve(long deadline) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        long now = nanoClock.getAsLong();
+        // Time the bucket was idle is saved up, but only to a full bucket
+        long start = Math.max(nextFreeNanos, now - burstNanos);
+        if (start > deadline) {
+            return -1;
+        }
+        nextFreeNanos = start + intervalNanos;
+        return Math.max(0, start - now);
+    }
+}
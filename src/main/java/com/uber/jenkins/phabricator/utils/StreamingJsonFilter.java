@@ -0,0 +1,234 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.Predicate;
+
+/**
+ * Reads a JSON document from a stream and keeps only the parts that are needed, so large values nobody reads (like
+ * the hunks of a diff) are skipped as they go by instead of being buffered and parsed.
+ *
+ * Values are named by their path from the root, with object keys separated by dots and array elements named "*",
+ * e.g. "result.123.changes.*.hunks". The kept parts are returned as compact JSON text, copied as-is from the input,
+ * so they parse exactly as they would have from the whole document.
+ */
+public final class StreamingJsonFilter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+    private final Predicate<String> skip;
+    private final StringBuilder out = new StringBuilder();
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int pushedBack = -2;
+
+    private StreamingJsonFilter(Reader in, Predicate<String> skip) {
+        this.in = in;
+        this.skip = skip;
+    }
+
+    /**
+     * Read a JSON document, leaving out the values at the given paths along with their keys
+     *
+     * @param in The JSON document
+     * @param skip Whether to leave out the value at a path
+     * @return The rest of the document as JSON text
+     * @throws IOException if the document can't be read or isn't valid JSON
+     */
+    public static String filter(Reader in, Predicate<String> skip) throws IOException {
+        StreamingJsonFilter filter = new StreamingJsonFilter(in, skip);
+        filter.value("", true);
+        if (filter.nextNonSpace() != -1) {
+            throw new IOException("Unexpected data after the end of the JSON document");
+        }
+        return filter.out.toString();
+    }
+
+    private void value(String path, boolean keep) throws IOException {
+        int c = nextNonSpace();
+        switch (c) {
+            case '{':
+                object(path, keep);
+                break;
+            case '[':
+                array(path, keep);
+                break;
+            case '"':
+                string(keep);
+                break;
+            case -1:
+                throw new EOFException("Unexpected end of the JSON document");
+            default:
+                literal(c, keep);
+        }
+    }
+
+    private void object(String path, boolean keep) throws IOException {
+        emit('{', keep);
+        int c = nextNonSpace();
+        boolean first = true;
+        while (c != '}') {
+            if (c != '"') {
+                throw unexpected(c);
+            }
+            String key = null;
+            if (keep) {
+                int start = out.length();
+                string(true);
+                key = out.substring(start + 1, out.length() - 1);
+                out.setLength(start);
+            } else {
+                string(false);
+            }
+            expect(':');
+
+            String childPath = null;
+            boolean keepChild = false;
+            if (keep) {
+                childPath = path.isEmpty() ? key : path + '.' + key;
+                keepChild = !skip.test(childPath);
+            }
+            if (keepChild) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append('"').append(key).append("\":");
+            }
+            value(childPath, keepChild);
+
+            c = nextNonSpace();
+            if (c == ',') {
+                c = nextNonSpace();
+            } else if (c != '}') {
+                throw unexpected(c);
+            }
+        }
+        emit('}', keep);
+    }
+
+    private void array(String path, boolean keep) throws IOException {
+        emit('[', keep);
+        String childPath = keep ? path + ".*" : null;
+        boolean keepChild = keep && !skip.test(childPath);
+        int c = nextNonSpace();
+        boolean first = true;
+        while (c != ']') {
+            pushedBack = c;
+            if (keepChild && !first) {
+                out.append(',');
+            }
+            first = false;
+            value(childPath, keepChild);
+
+            c = nextNonSpace();
+            if (c == ',') {
+                c = nextNonSpace();
+            } else if (c != ']') {
+                throw unexpected(c);
+            }
+        }
+        emit(']', keep);
+    }
+
+    private void string(boolean keep) throws IOException {
+        emit('"', keep);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw new EOFException("Unterminated string in the JSON document");
+            }
+            emit((char) c, keep);
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                int escaped = read();
+                if (escaped == -1) {
+                    throw new EOFException("Unterminated string in the JSON document");
+                }
+                emit((char) escaped, keep);
+            }
+        }
+    }
+
+    private void literal(int first, boolean keep) throws IOException {
+        if (first == ',' || first == '}' || first == ']' || first == ':') {
+            throw unexpected(first);
+        }
+        int c = first;
+        while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            emit((char) c, keep);
+            c = read();
+        }
+        pushedBack = c;
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = nextNonSpace();
+        if (c != expected) {
+            throw unexpected(c);
+        }
+    }
+
+    private void emit(char c, boolean keep) {
+        if (keep) {
+            out.append(c);
+        }
+    }
+
+    private int nextNonSpace() throws IOException {
+        int c = read();
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != -2) {
+            int c = pushedBack;
+            pushedBack = -2;
+            return c;
+        }
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    private static IOException unexpected(int c) {
+        if (c == -1) {
+            return new EOFException("Unexpected end of the JSON document");
+        }
+        return new IOException("Unexpected character '" + (char) c + "' in the JSON document");
+    }
+}
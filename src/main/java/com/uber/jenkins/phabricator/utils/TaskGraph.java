@@ -0,0 +1,97 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A small graph of stages, where each stage starts as soon as the stages it depends on are done. Stages can only
+ * depend on stages added before them, so the graph can't have cycles.
+ */
+public class TaskGraph {
+
+    private final Executor executor;
+    private final Map<String, CompletableFuture<Void>> stages = new LinkedHashMap<String, CompletableFuture<Void>>();
+
+    /**
+     * @param executor The executor to run the stages on
+     */
+    public TaskGraph(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Add a stage, starting it once its dependencies are done. If a dependency fails, the stage is skipped.
+     *
+     * @param name The name of the stage
+     * @param stage The work to do
+     * @param dependencies The names of the stages that must be done first
+     * @return this graph
+     */
+    public TaskGraph add(String name, Runnable stage, String... dependencies) {
+        if (stages.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate stage " + name);
+        }
+        List<CompletableFuture<Void>> after = new ArrayList<CompletableFuture<Void>>();
+        for (String dependency : dependencies) {
+            CompletableFuture<Void> future = stages.get(dependency);
+            if (future == null) {
+                throw new IllegalArgumentException("Stage " + name + " depends on unknown stage " + dependency);
+            }
+            after.add(future);
+        }
+        stages.put(name, CompletableFuture.allOf(after.toArray(new CompletableFuture[0]))
+                .thenRunAsync(stage, executor));
+        return this;
+    }
+
+    /**
+     * Wait for all stages to be done
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws RuntimeException the first failure of a stage, in the order they were added
+     */
+    public void await() throws InterruptedException {
+        Throwable failure = null;
+        for (CompletableFuture<Void> stage : stages.values()) {
+            try {
+                stage.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+}
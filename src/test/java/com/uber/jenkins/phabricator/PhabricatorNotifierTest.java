@@ -33,6 +33,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import hudson.model.FreeStyleBuild;
 import hudson.model.Result;
@@ -130,6 +132,25 @@ public class PhabricatorNotifierTest extends BuildIntegrationTest {
         assertLogContains("Publishing coverage data to Harbormaster for 3 files", build);
     }
 
+    @Test
+    public void testRecordsPhaseTimings() throws Exception {
+        TestUtils.addCopyBuildStep(p, TestUtils.COBERTURA_XML, XmlCoverageProvider.class, "go-torch-coverage.xml");
+
+        FreeStyleBuild build = buildWithConduit(getFetchDiffResponse(), null, new JSONObject());
+        assertEquals(Result.SUCCESS, build.getResult());
+
+        PhabricatorTimingAction timings = build.getAction(PhabricatorTimingAction.class);
+        Map<String, PhabricatorTimingAction.Phase> phases = new HashMap<String, PhabricatorTimingAction.Phase>();
+        for (PhabricatorTimingAction.Phase phase : timings.getPhases()) {
+            phases.put(phase.getName(), phase);
+        }
+        assertEquals(3, phases.get(PhabricatorTimingAction.COVERAGE_PARSE).getItems());
+        assertEquals(1, phases.get(PhabricatorTimingAction.COVERAGE_COPY).getItems());
+        assertTrue(phases.get(PhabricatorTimingAction.COVERAGE_COPY).getBytes() > 0);
+        assertTrue(phases.get(PhabricatorTimingAction.CONDUIT_PREFIX + "differential.querydiffs").getBytes() > 0);
+        assertTrue(phases.containsKey(PhabricatorTimingAction.CONDUIT_PREFIX + "harbormaster.sendmessage"));
+    }
+
     @Test
     public void testSendPartialResults() throws Exception {
         notifier = getSendPartialResultsNotifier();
@@ -0,0 +1,82 @@
+// Copyright (c) 2015 Uber
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.uber.jenkins.phabricator;
+
+import com.uber.jenkins.phabricator.coverage.CodeCoverageMetrics;
+import com.uber.jenkins.phabricator.uberalls.UberallsClient;
+import com.uber.jenkins.phabricator.utils.TestUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class PhabricatorPrefetchActionTest {
+
+    private static final String BASE_COMMIT = "deadbeef";
+
+    private UberallsClient uberalls;
+    private CodeCoverageMetrics fetched;
+    private CodeCoverageMetrics prefetched;
+
+    @Before
+    public void setUp() {
+        uberalls = TestUtils.getDefaultUberallsClient();
+        fetched = TestUtils.getDefaultCodeCoverageMetrics();
+        prefetched = TestUtils.getDefaultCodeCoverageMetrics();
+        doReturn(fetched).when(uberalls).getParentCoverage(BASE_COMMIT);
+    }
+
+    @Test
+    public void testPrefetchedParentCoverage() {
+        PhabricatorPrefetchAction action = new PhabricatorPrefetchAction();
+        action.setParentCoverage(BASE_COMMIT, CompletableFuture.completedFuture(prefetched));
+        assertSame(prefetched, action.getParentCoverage(BASE_COMMIT, uberalls));
+        verify(uberalls, never()).getParentCoverage(BASE_COMMIT);
+    }
+
+    @Test
+    public void testFailedPrefetchFallsBack() {
+        CompletableFuture<CodeCoverageMetrics> failed = new CompletableFuture<CodeCoverageMetrics>();
+        failed.completeExceptionally(new RuntimeException());
+        PhabricatorPrefetchAction action = new PhabricatorPrefetchAction();
+        action.setParentCoverage(BASE_COMMIT, failed);
+        assertSame(fetched, action.getParentCoverage(BASE_COMMIT, uberalls));
+    }
+
+    @Test
+    public void testDifferentParentFallsBack() {
+        PhabricatorPrefetchAction action = new PhabricatorPrefetchAction();
+        action.setParentCoverage("cafebabe", CompletableFuture.completedFuture(prefetched));
+        assertSame(fetched, action.getParentCoverage(BASE_COMMIT, uberalls));
+    }
+
+    @Test
+    public void testNoPrefetchFallsBack() {
+        assertSame(fetched, new PhabricatorPrefetchAction().getParentCoverage(BASE_COMMIT, uberalls));
+    }
+}
@@ -0,0 +1,63 @@
+// Copyright (c) 2015 Uber
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.uber.jenkins.phabricator;
+
+import com.uber.jenkins.phabricator.utils.RequestListener;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PhabricatorTimingActionTest {
+
+    @Test
+    public void testRecordPhase() {
+        PhabricatorTimingAction action = new PhabricatorTimingAction();
+        action.record(PhabricatorTimingAction.COVERAGE_PARSE, TimeUnit.MILLISECONDS.toNanos(1500), 2048, 12);
+
+        List<PhabricatorTimingAction.Phase> phases = action.getPhases();
+        assertEquals(1, phases.size());
+        assertEquals(PhabricatorTimingAction.COVERAGE_PARSE, phases.get(0).getName());
+        assertEquals(1500, phases.get(0).getDurationMillis());
+        assertEquals(2048, phases.get(0).getBytes());
+        assertEquals(12, phases.get(0).getItems());
+    }
+
+    @Test
+    public void testRequestListenerRecordsEachRequest() {
+        PhabricatorTimingAction action = new PhabricatorTimingAction();
+        RequestListener listener = action.requestListener(PhabricatorTimingAction.CONDUIT_PREFIX);
+        listener.requestCompleted("differential.querydiffs", TimeUnit.MILLISECONDS.toNanos(20), 100, 900, false);
+        listener.requestCompleted("harbormaster.sendmessage", TimeUnit.MILLISECONDS.toNanos(5), 300, -1, true);
+
+        List<PhabricatorTimingAction.Phase> phases = action.getPhases();
+        assertEquals(2, phases.size());
+        assertEquals("conduit:differential.querydiffs", phases.get(0).getName());
+        assertEquals(1000, phases.get(0).getBytes());
+        assertEquals(1, phases.get(0).getItems());
+        assertEquals("conduit:harbormaster.sendmessage", phases.get(1).getName());
+        assertEquals(300, phases.get(1).getBytes());
+    }
+}
@@ -20,19 +20,52 @@
 
 package com.uber.jenkins.phabricator.conduit;
 
+import com.uber.jenkins.phabricator.utils.RequestThrottle;
 import com.uber.jenkins.phabricator.utils.TestUtils;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.localserver.LocalServerTestBase;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ConduitAPIClientTest extends LocalServerTestBase {
 
@@ -65,6 +98,111 @@ public class ConduitAPIClientTest extends LocalServerTestBase {
         assertEquals("world", response.getString("hello"));
     }
 
+    @Test
+    public void testRepeatedFetches() throws Exception {
+        this.serverBootstrap.registerHandler("/api/valid", TestUtils.makeHttpHandler(HttpStatus.SC_OK, "{\"hello\": \"world\"}"));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("world", client.perform("valid", emptyParams).getString("hello"));
+        }
+    }
+
+    @Test
+    public void testPerformAsync() throws Exception {
+        this.serverBootstrap.registerHandler("/api/valid", TestUtils.makeHttpHandler(HttpStatus.SC_OK, "{\"hello\": \"world\"}"));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        List<CompletableFuture<JSONObject>> responses = new ArrayList<CompletableFuture<JSONObject>>();
+        for (int i = 0; i < 20; i++) {
+            responses.add(client.performAsync("valid", new JSONObject()));
+        }
+        for (CompletableFuture<JSONObject> response : responses) {
+            assertEquals("world", response.get().getString("hello"));
+        }
+    }
+
+    @Test
+    public void testPerformAsyncFailure() throws Exception {
+        this.serverBootstrap.registerHandler("/api/foo", TestUtils.makeHttpHandler(HttpStatus.SC_BAD_REQUEST, "nothing"));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        try {
+            client.performAsync("foo", emptyParams).get();
+            fail("Expected the call to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConduitAPIException);
+        }
+    }
+
+    @Test
+    public void testPerformAsyncFailsOnceTooManyCallsAreWaiting() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        this.serverBootstrap.registerHandler("/api/slow", (request, response, context) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            response.setStatusCode(HttpStatus.SC_OK);
+            response.setEntity(new StringEntity("{}"));
+        });
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        List<CompletableFuture<JSONObject>> responses = new ArrayList<CompletableFuture<JSONObject>>();
+        for (int i = 0; i < ConduitAPIClient.MAX_IN_FLIGHT + ConduitAPIClient.MAX_QUEUED_ASYNC + 1; i++) {
+            responses.add(client.performAsync("slow", new JSONObject()));
+        }
+        try {
+            responses.get(responses.size() - 1).get();
+            fail("Expected the call to be turned away");
+        } catch (ExecutionException e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, ((ConduitAPIException) e.getCause()).code);
+        } finally {
+            release.countDown();
+        }
+        assertNotNull(responses.get(0).get());
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        List<String> requests = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/api/*",
+                TestUtils.makeHttpHandler(HttpStatus.SC_OK, "{\"result\": {}}", requests));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN)
+                .withResponseCache(new ConduitResponseCache());
+        client.perform("differential.querydiffs", new JSONObject().element("ids", new String[] {"1"}));
+        client.perform("differential.querydiffs", new JSONObject().element("ids", new String[] {"1"}));
+        assertEquals(1, requests.size());
+
+        client.perform("differential.querydiffs", new JSONObject().element("ids", new String[] {"2"}));
+        assertEquals(2, requests.size());
+
+        client.perform("harbormaster.sendmessage", new JSONObject());
+        client.perform("harbormaster.sendmessage", new JSONObject());
+        assertEquals(4, requests.size());
+    }
+
+    @Test
+    public void testResponseCacheSkipsErrors() throws Exception {
+        List<String> requests = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/api/*", TestUtils.makeHttpHandler(HttpStatus.SC_OK,
+                "{\"error_code\": \"ERR-CONDUIT-CORE\", \"error_info\": \"nope\"}", requests));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN)
+                .withResponseCache(new ConduitResponseCache());
+        client.perform("harbormaster.createartifact", new JSONObject());
+        client.perform("harbormaster.createartifact", new JSONObject());
+        assertEquals(2, requests.size());
+    }
+
     @Test(expected = ConduitAPIException.class)
     public void testBadRequestErrorCode() throws Exception {
         this.serverBootstrap.registerHandler("/api/foo", TestUtils.makeHttpHandler(HttpStatus.SC_BAD_REQUEST, "nothing"));
@@ -80,6 +218,215 @@ public class ConduitAPIClientTest extends LocalServerTestBase {
         JSONObject params = new JSONObject().element("hello", "world");
         params.put("hello", "world");
         client.createRequest("action", params);
+        assertEquals(new JSONObject().element("hello", "world"), params);
+    }
+
+    @Test
+    public void testStreamedRequestMatchesFormEncoding() throws Exception {
+        client = new ConduitAPIClient("http://foo.bar", TestUtils.TEST_CONDUIT_TOKEN);
+        JSONArray unit = new JSONArray();
+        for (int i = 0; i < 100; i++) {
+            unit.add(new JSONObject()
+                    .element("name", "test " + i)
+                    .element("details", "expected <\"a/b\"> but was 50% & \u3053\u3093\n")
+                    .element("duration", i / 8.0));
+        }
+        JSONObject params = new JSONObject().element("type", "fail").element("unit", unit);
+
+        HttpEntity entity = ((HttpEntityEnclosingRequest) client.createRequest("action", params)).getEntity();
+
+        String json = params.toString();
+        String posted = json.substring(0, json.length() - 1)
+                + ",\"__conduit__\":{\"token\":\"" + TestUtils.TEST_CONDUIT_TOKEN + "\"}}";
+        String expected = URLEncodedUtils.format(
+                Collections.singletonList(new BasicNameValuePair("params", posted)), Consts.UTF_8);
+        assertEquals(expected, EntityUtils.toString(entity));
+        assertEquals(expected.length(), entity.getContentLength());
+        assertTrue(entity.isRepeatable());
+    }
+
+    @Test
+    public void testQueryDiffsSkipsHunks() throws Exception {
+        this.serverBootstrap.registerHandler("/api/differential.querydiffs", TestUtils.makeHttpHandler(HttpStatus.SC_OK,
+                "{\"result\": {\"123\": {\"id\": \"123\", \"changes\": [{\"currentPath\": \"a.go\", "
+                        + "\"hunks\": [{\"corpus\": \"+foo\"}]}]}}}"));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        JSONObject diff = client.perform("differential.querydiffs", emptyParams).getJSONObject("result")
+                .getJSONObject("123");
+        assertEquals("123", diff.getString("id"));
+        JSONObject change = diff.getJSONArray("changes").getJSONObject(0);
+        assertEquals("a.go", change.getString("currentPath"));
+        assertFalse(change.has("hunks"));
+    }
+
+    @Test
+    public void testCompressesLargeRequests() throws Exception {
+        List<String> encodings = new ArrayList<String>();
+        List<String> bodies = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/api/conduit.getcapabilities", TestUtils.makeHttpHandler(
+                HttpStatus.SC_OK, "{\"result\": {\"input\": [\"urlencoded\", \"gzip\"]}}"));
+        this.serverBootstrap.registerHandler("/api/large", makeRecordingHandler(encodings, bodies));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN)
+                .withRequestCompression(true);
+        client.perform("large", new JSONObject().element("coverage", getLargeCoverage()));
+        client.perform("large", emptyParams);
+
+        assertEquals("gzip", encodings.get(0));
+        assertTrue(bodies.get(0).contains(getLargeCoverage()));
+        assertNull(encodings.get(1));
+    }
+
+    @Test
+    public void testNoCompressionWithoutServerSupport() throws Exception {
+        List<String> encodings = new ArrayList<String>();
+        List<String> bodies = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/api/conduit.getcapabilities", TestUtils.makeHttpHandler(
+                HttpStatus.SC_OK, "{\"result\": {\"input\": [\"urlencoded\"]}}"));
+        this.serverBootstrap.registerHandler("/api/large", makeRecordingHandler(encodings, bodies));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN)
+                .withRequestCompression(true);
+        client.perform("large", new JSONObject().element("coverage", getLargeCoverage()));
+
+        assertNull(encodings.get(0));
+        assertTrue(bodies.get(0).contains(getLargeCoverage()));
+    }
+
+    @Test
+    public void testAsksForCapabilitiesAgainAfterAFailure() throws Exception {
+        List<String> encodings = new ArrayList<String>();
+        List<String> bodies = new ArrayList<String>();
+        AtomicInteger requests = new AtomicInteger();
+        this.serverBootstrap.registerHandler("/api/conduit.getcapabilities", makeFlakyHandler(requests,
+                ConduitAPIClient.MAX_ATTEMPTS, "{\"result\": {\"input\": [\"urlencoded\", \"gzip\"]}}"));
+        this.serverBootstrap.registerHandler("/api/large", makeRecordingHandler(encodings, bodies));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN)
+                .withRequestCompression(true);
+        client.perform("large", new JSONObject().element("coverage", getLargeCoverage()));
+        client.perform("large", new JSONObject().element("coverage", getLargeCoverage()));
+
+        assertNull(encodings.get(0));
+        assertEquals("gzip", encodings.get(1));
+    }
+
+    @Test
+    public void testRemembersConduitsWithoutCapabilities() throws Exception {
+        List<String> encodings = new ArrayList<String>();
+        List<String> bodies = new ArrayList<String>();
+        AtomicInteger requests = new AtomicInteger();
+        this.serverBootstrap.registerHandler("/api/conduit.getcapabilities", makeFlakyHandler(requests, 0,
+                "{\"result\": null, \"error_code\": \"ERR-CONDUIT-CALL\", "
+                        + "\"error_info\": \"Conduit method 'conduit.getcapabilities' does not exist.\"}"));
+        this.serverBootstrap.registerHandler("/api/large", makeRecordingHandler(encodings, bodies));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN)
+                .withRequestCompression(true);
+        client.perform("large", new JSONObject().element("coverage", getLargeCoverage()));
+        client.perform("large", new JSONObject().element("coverage", getLargeCoverage()));
+
+        assertNull(encodings.get(0));
+        assertNull(encodings.get(1));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testCompressesLargeRequestsWithOneTurnInFlight() throws Exception {
+        List<String> encodings = new ArrayList<String>();
+        List<String> bodies = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/api/conduit.getcapabilities", TestUtils.makeHttpHandler(
+                HttpStatus.SC_OK, "{\"result\": {\"input\": [\"urlencoded\", \"gzip\"]}}"));
+        this.serverBootstrap.registerHandler("/api/large", makeRecordingHandler(encodings, bodies));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN)
+                .withRequestCompression(true)
+                .withThrottle(new RequestThrottle(0, 1, 100));
+        client.perform("large", new JSONObject().element("coverage", getLargeCoverage()));
+
+        assertEquals("gzip", encodings.get(0));
+        assertTrue(bodies.get(0).contains(getLargeCoverage()));
+    }
+
+    @Test
+    public void testRetriesTransientFailures() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        this.serverBootstrap.registerHandler("/api/differential.getcommitmessage", makeFlakyHandler(requests, 2,
+                "{\"result\": \"message\"}"));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        JSONObject response = client.perform("differential.getcommitmessage", emptyParams);
+        assertEquals("message", response.getString("result"));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testDoesNotRetryUnsafeWrites() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        this.serverBootstrap.registerHandler("/api/differential.createcomment", makeFlakyHandler(requests, 1, "{}"));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        try {
+            client.perform("differential.createcomment", emptyParams);
+            fail("expected the gateway error to be rethrown");
+        } catch (ConduitAPIException e) {
+            assertEquals(HttpStatus.SC_BAD_GATEWAY, e.code);
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFast() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        this.serverBootstrap.registerHandler("/api/differential.createcomment",
+                makeFlakyHandler(requests, Integer.MAX_VALUE, "{}"));
+        this.start();
+
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN);
+        for (int i = 0; i < ConduitAPIClient.BREAKER_FAILURE_THRESHOLD; i++) {
+            try {
+                client.perform("differential.createcomment", emptyParams);
+                fail("expected the gateway error to be rethrown");
+            } catch (ConduitAPIException e) {
+                assertEquals(HttpStatus.SC_BAD_GATEWAY, e.code);
+            }
+        }
+        try {
+            client.perform("differential.createcomment", emptyParams);
+            fail("expected the open breaker to refuse the call");
+        } catch (ConduitAPIException e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.code);
+        }
+        assertEquals(ConduitAPIClient.BREAKER_FAILURE_THRESHOLD, requests.get());
+    }
+
+    @Test
+    public void testThrottleTimesOut() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        this.serverBootstrap.registerHandler("/api/valid", makeFlakyHandler(requests, 0, "{}"));
+        this.start();
+
+        RequestThrottle throttle = new RequestThrottle(0, 1, 10);
+        client = new ConduitAPIClient(getTestServerAddress(), TestUtils.TEST_CONDUIT_TOKEN).withThrottle(throttle);
+        client.perform("valid", emptyParams);
+
+        assertTrue(throttle.acquire());
+        try {
+            client.perform("valid", emptyParams);
+            fail("expected the call to time out waiting for the throttle");
+        } catch (ConduitAPIException e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.code);
+        }
+        assertEquals(1, requests.get());
     }
 
     @Test
@@ -95,4 +442,46 @@ public class ConduitAPIClientTest extends LocalServerTestBase {
     private String getTestServerAddress() {
         return TestUtils.getTestServerAddress(this.server);
     }
+
+    private String getLargeCoverage() {
+        StringBuilder coverage = new StringBuilder();
+        for (int i = 0; i < ConduitAPIClient.COMPRESSION_THRESHOLD; i++) {
+            coverage.append(i % 3 == 0 ? 'U' : 'C');
+        }
+        return coverage.toString();
+    }
+
+    private HttpRequestHandler makeFlakyHandler(final AtomicInteger requests, final int failures,
+            final String body) {
+        return new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+                if (requests.incrementAndGet() <= failures) {
+                    response.setStatusCode(HttpStatus.SC_BAD_GATEWAY);
+                    response.setEntity(new StringEntity("bad gateway"));
+                } else {
+                    response.setStatusCode(HttpStatus.SC_OK);
+                    response.setEntity(new StringEntity(body));
+                }
+            }
+        };
+    }
+
+    private HttpRequestHandler makeRecordingHandler(final List<String> encodings, final List<String> bodies) {
+        return new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                Header encoding = request.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+                encodings.add(encoding != null ? encoding.getValue() : null);
+                InputStream body = entity.getContent();
+                if (encoding != null) {
+                    body = new GZIPInputStream(body);
+                }
+                bodies.add(URLDecoder.decode(IOUtils.toString(body, StandardCharsets.UTF_8), "UTF-8"));
+                response.setStatusCode(HttpStatus.SC_OK);
+                response.setEntity(new StringEntity("{}"));
+            }
+        };
+    }
 }
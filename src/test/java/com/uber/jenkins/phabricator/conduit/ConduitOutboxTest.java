@@ -0,0 +1,178 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.conduit;
+
+import net.sf.json.JSONObject;
+
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+
+public class ConduitOutboxTest {
+
+    private static final String GATEWAY = "http://phabricator.example.com";
+    private static final String ACTION = "differential.createcomment";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<JSONObject> sent = new ArrayList<JSONObject>();
+    private ConduitAPIException failure;
+    private IOException networkFailure;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = new File(tmp.getRoot(), ConduitOutbox.JOURNAL_NAME);
+    }
+
+    @Test
+    public void testCallsAreMadeAndRemovedFromJournal() throws IOException {
+        ConduitOutbox outbox = newOutbox();
+        outbox.add(GATEWAY, "token", false, ACTION, params("a"));
+        outbox.add(GATEWAY, "token", false, ACTION, params("b"));
+        assertEquals(2, Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).size());
+
+        outbox.drain();
+        assertEquals(2, sent.size());
+        assertEquals("a", sent.get(0).getString("message"));
+        assertEquals(0, outbox.size());
+        assertEquals(0, Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testCallsAreKeptWhileConduitIsDown() throws IOException {
+        ConduitOutbox outbox = newOutbox();
+        outbox.add(GATEWAY, "token", false, ACTION, params("a"));
+        failure = new ConduitAPIException("unavailable", HttpStatus.SC_SERVICE_UNAVAILABLE);
+        outbox.drain();
+        assertEquals(1, outbox.size());
+
+        failure = null;
+        outbox.drain();
+        assertEquals(0, outbox.size());
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void testRejectedCallsAreDropped() throws IOException {
+        ConduitOutbox outbox = newOutbox();
+        outbox.add(GATEWAY, "token", false, ACTION, params("a"));
+        failure = new ConduitAPIException("bad request", HttpStatus.SC_BAD_REQUEST);
+        outbox.drain();
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void testServerErrorsAreDropped() throws IOException {
+        ConduitOutbox outbox = newOutbox();
+        outbox.add(GATEWAY, "token", false, ACTION, params("a"));
+        failure = new ConduitAPIException("internal error", HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        outbox.drain();
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void testUnsafeWritesAreKeptWhileConduitCantBeReached() throws IOException {
+        ConduitOutbox outbox = newOutbox();
+        outbox.add(GATEWAY, "token", false, ACTION, params("a"));
+        networkFailure = new ConnectException("connection refused");
+        outbox.drain();
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void testUnsafeWritesThatMayHaveBeenMadeAreDropped() throws IOException {
+        ConduitOutbox outbox = newOutbox();
+        outbox.add(GATEWAY, "token", false, ACTION, params("a"));
+        networkFailure = new SocketTimeoutException("read timed out");
+        outbox.drain();
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void testCallsAreReplayedAfterRestart() throws IOException {
+        ConduitOutbox outbox = newOutbox();
+        outbox.add(GATEWAY, "token", false, ACTION, params("a"));
+        Files.write(journal.toPath(), "{\"gateway\": \"torn".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        ConduitOutbox restarted = newOutbox();
+        restarted.load();
+        assertEquals(1, restarted.size());
+        restarted.drain();
+        assertEquals("a", sent.get(0).getString("message"));
+        assertEquals(0, restarted.size());
+    }
+
+    @Test
+    public void testJournalNeverHoldsThePlaintextToken() throws IOException {
+        ConduitOutbox outbox = new ConduitOutbox(journal, (gateway, token, compress, action, params) -> {
+            new ConduitAPIClient(gateway, "plaintext-token").createRequest(action, params);
+            if ("b".equals(params.getString("message"))) {
+                throw new ConduitAPIException("unavailable", HttpStatus.SC_SERVICE_UNAVAILABLE);
+            }
+            return new JSONObject();
+        }, mock(ScheduledExecutorService.class));
+        outbox.add(GATEWAY, "encrypted-token", false, ACTION, params("a"));
+        outbox.add(GATEWAY, "encrypted-token", false, ACTION, params("b"));
+
+        outbox.drain();
+        assertEquals(1, outbox.size());
+        List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertFalse(lines.get(0).contains("plaintext-token"));
+    }
+
+    private ConduitOutbox newOutbox() {
+        return new ConduitOutbox(journal, (gateway, token, compress, action, params) -> {
+            if (failure != null) {
+                throw failure;
+            }
+            if (networkFailure != null) {
+                throw networkFailure;
+            }
+            sent.add(params);
+            return new JSONObject();
+        }, mock(ScheduledExecutorService.class));
+    }
+
+    private static JSONObject params(String message) {
+        return new JSONObject().element("revision_id", "123").element("message", message);
+    }
+}
@@ -29,9 +29,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static junit.framework.TestCase.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
@@ -110,6 +113,32 @@ public class DifferentialClientTest {
         differentialClient.fetchDiff();
     }
 
+    @Test
+    public void testFetchDiffAsyncWithValidResponse() throws Exception {
+        JSONObject realResponse = TestUtils.getJSONFromFile(getClass(), "validFetchDiffResponse");
+        mockConduitResponseAsync(differentialClient, CompletableFuture.completedFuture(realResponse));
+
+        JSONObject response = differentialClient.fetchDiffAsync().get();
+        assertEquals("world", response.get("hello"));
+    }
+
+    @Test
+    public void testFetchDiffAsyncWithEmptyResponse() throws Exception {
+        mockConduitResponseAsync(differentialClient, CompletableFuture.completedFuture(new JSONObject()));
+
+        try {
+            differentialClient.fetchDiffAsync().get();
+            fail("Expected the empty response to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConduitAPIException);
+        }
+    }
+
+    @Test
+    public void testGetCommitMessageAsyncWithoutRevision() throws Exception {
+        assertEquals("", differentialClient.getCommitMessageAsync(null).get());
+    }
+
     @Test
     public void testSendHarbormasterSuccess() throws IOException, ConduitAPIException {
         JSONObject empty = new JSONObject();
@@ -125,6 +154,13 @@ public class DifferentialClientTest {
         );
     }
 
+    private void mockConduitResponseAsync(DifferentialClient client, CompletableFuture<JSONObject> response) {
+        doReturn(response).when(client).callConduitAsync(
+                anyString(),
+                any(JSONObject.class)
+        );
+    }
+
     private String singleWarning() {
         return "[\n" +
                 "  {\n" +
@@ -0,0 +1,159 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.conduit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HarbormasterCoalescerTest {
+
+    private static final String PHID = "PHID-HMBT-coalescer";
+
+    private final HarbormasterCoalescer coalescer = new HarbormasterCoalescer();
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSendsRightAwayWhenIdle() throws Exception {
+        JSONObject response = coalescer.send(PHID, true, () -> respond("work"));
+        assertEquals("work", response.getString("sent"));
+        assertEquals(0, coalescer.waiting(PHID));
+    }
+
+    @Test
+    public void testNewerMessagesSupersedeWaitingWork() throws Exception {
+        CountDownLatch inFlight = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        Future<JSONObject> first = submit(true, () -> {
+            inFlight.countDown();
+            proceed.await();
+            return respond("first");
+        });
+        inFlight.await();
+
+        Future<JSONObject> second = submit(true, () -> respond("second"));
+        awaitWaiting(1);
+        Future<JSONObject> third = submit(true, () -> respond("third"));
+        assertTrue(second.get().isEmpty());
+
+        Future<JSONObject> last = submit(false, () -> respond("fail"));
+        assertTrue(third.get().isEmpty());
+
+        proceed.countDown();
+        assertEquals("first", first.get().getString("sent"));
+        assertEquals("fail", last.get().getString("sent"));
+        assertEquals(Arrays.asList("first", "fail"), sent);
+        assertEquals(0, coalescer.waiting(PHID));
+    }
+
+    @Test
+    public void testFinalMessagesAreAllSentInOrder() throws Exception {
+        CountDownLatch inFlight = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        Future<JSONObject> first = submit(true, () -> {
+            inFlight.countDown();
+            proceed.await();
+            return respond("work");
+        });
+        inFlight.await();
+
+        Future<JSONObject> pass = submit(false, () -> respond("pass"));
+        awaitWaiting(1);
+        Future<JSONObject> fail = submit(false, () -> respond("fail"));
+        awaitWaiting(2);
+
+        proceed.countDown();
+        first.get();
+        pass.get();
+        fail.get();
+        assertEquals(Arrays.asList("work", "pass", "fail"), sent);
+    }
+
+    @Test
+    public void testTargetsDoNotWaitOnEachOther() throws Exception {
+        CountDownLatch proceed = new CountDownLatch(1);
+        Future<JSONObject> blocked = submit(true, () -> {
+            proceed.await();
+            return respond("blocked");
+        });
+
+        assertEquals("other", coalescer.send("PHID-HMBT-other", true, () -> respond("other")).getString("sent"));
+        proceed.countDown();
+        blocked.get();
+    }
+
+    @Test
+    public void testOnlyWorkWithoutResultsIsSupersedable() {
+        JSONObject work = new JSONObject().element("type", "work").element("buildTargetPHID", PHID);
+        assertTrue(HarbormasterCoalescer.isSupersedable(work));
+        assertFalse(HarbormasterCoalescer.isSupersedable(JSONObject.fromObject(work).element("unit",
+                new JSONArray().element(new JSONObject().element("name", "test").element("result", "pass")))));
+        assertFalse(HarbormasterCoalescer.isSupersedable(JSONObject.fromObject(work).element("lint",
+                new JSONArray().element(new JSONObject().element("name", "lint")))));
+        assertFalse(HarbormasterCoalescer.isSupersedable(JSONObject.fromObject(work).element("type", "pass")));
+    }
+
+    private interface Send {
+        JSONObject send() throws Exception;
+    }
+
+    private Future<JSONObject> submit(boolean supersedable, Send send) {
+        return executor.submit(() -> coalescer.send(PHID, supersedable, () -> {
+            try {
+                return send.send();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }));
+    }
+
+    private JSONObject respond(String message) {
+        sent.add(message);
+        return new JSONObject().element("sent", message);
+    }
+
+    private void awaitWaiting(int count) throws InterruptedException {
+        while (coalescer.waiting(PHID) < count) {
+            Thread.sleep(1);
+        }
+    }
+}
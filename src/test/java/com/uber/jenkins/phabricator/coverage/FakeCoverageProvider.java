@@ -27,7 +27,7 @@ public class FakeCoverageProvider extends CoverageProvider {
 
     public FakeCoverageProvider(Map<String, List<Integer>> lineCoverage) {
         super(null);
-        this.lineCoverage.putAll(lineCoverage);
+        lineCoverage.forEach((file, hits) -> this.lineCoverage.put(file, LineCoverage.of(hits)));
     }
 
     @Override
@@ -0,0 +1,64 @@
+package com.uber.jenkins.phabricator.coverage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class IncludeFileIndexTest {
+
+    private static final Set<String> INCLUDE_FILES = new HashSet<>(Arrays.asList(
+            "com/uber/jenkins/phabricator/packageA/Greet.java",
+            "com/uber/jenkins/phabricator/packageB/Greet.java",
+            "src/Example/Example.php",
+            "eet.java"));
+
+    @Test
+    public void everyFileIsIncludedWithoutIncludeFiles() {
+        IncludeFileIndex index = IncludeFileIndex.of(null);
+
+        assertEquals("any/File.java", index.getRelativePathFromProjectRoot("any/File.java"));
+        assertEquals("any/File.java", index.getContainedPathFromProjectRoot("any/File.java"));
+    }
+
+    @Test
+    public void relativePaths() {
+        IncludeFileIndex index = IncludeFileIndex.of(INCLUDE_FILES);
+
+        assertEquals("com/uber/jenkins/phabricator/packageB/Greet.java",
+                index.getRelativePathFromProjectRoot("phabricator/packageB/Greet.java"));
+        assertEquals("com/uber/jenkins/phabricator/packageA/Greet.java",
+                index.getRelativePathFromProjectRoot("Greet.java"));
+        assertEquals("eet.java", index.getRelativePathFromProjectRoot("eet.java"));
+        assertNull(index.getRelativePathFromProjectRoot("kageB/Greet.java"));
+        assertNull(index.getRelativePathFromProjectRoot("Other.java"));
+    }
+
+    @Test
+    public void containedPaths() {
+        IncludeFileIndex index = IncludeFileIndex.of(INCLUDE_FILES);
+
+        assertEquals("src/Example/Example.php",
+                index.getContainedPathFromProjectRoot("/home/ubuntu/example-php/src/Example/Example.php"));
+        assertEquals("com/uber/jenkins/phabricator/packageB/Greet.java",
+                index.getContainedPathFromProjectRoot(
+                        "/src/main/java/com/uber/jenkins/phabricator/packageB/Greet.java"));
+        assertNull(index.getContainedPathFromProjectRoot("/home/ubuntu/example-php/src/Other.php"));
+    }
+
+    @Test
+    public void indexIsReusedForTheSameChanges() {
+        IncludeFileIndex first = IncludeFileIndex.forJob("job", INCLUDE_FILES);
+
+        assertSame(first, IncludeFileIndex.forJob("job", new HashSet<>(INCLUDE_FILES)));
+        assertNotSame(first, IncludeFileIndex.forJob("job", Collections.singleton("eet.java")));
+        assertNotSame(first, IncludeFileIndex.forJob("other-job", INCLUDE_FILES));
+    }
+}
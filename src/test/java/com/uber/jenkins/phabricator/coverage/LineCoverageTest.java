@@ -0,0 +1,53 @@
+package com.uber.jenkins.phabricator.coverage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineCoverageTest {
+
+    @Test
+    public void unrecordedLinesAreNotExecutable() {
+        LineCoverage coverage = new LineCoverage();
+        coverage.setHitCount(3, 2);
+        coverage.setHitCount(5, 0);
+
+        assertEquals(Arrays.asList(null, null, 2, null, 0), coverage);
+        assertFalse(coverage.isExecutable(0));
+        assertTrue(coverage.isCovered(2));
+        assertFalse(coverage.isCovered(4));
+        assertTrue(coverage.isExecutable(4));
+    }
+
+    @Test
+    public void laterCountsReplaceEarlierCounts() {
+        LineCoverage coverage = new LineCoverage();
+        coverage.setHitCount(1, 4);
+        coverage.setHitCount(1, 0);
+
+        assertEquals(Collections.singletonList(0), coverage);
+    }
+
+    @Test
+    public void copyFromList() {
+        LineCoverage coverage = LineCoverage.of(Arrays.asList(null, 2, 0, 1));
+
+        assertEquals(4, coverage.size());
+        assertEquals(LineCoverage.NOT_EXECUTABLE, coverage.getHitCount(0));
+        assertEquals(2, coverage.getHitCount(1));
+        assertEquals(Arrays.asList(null, 2, 0, 1), coverage);
+    }
+
+    @Test
+    public void mergeSumsHitsAndExtends() {
+        LineCoverage coverage = LineCoverage.of(Arrays.asList(null, 2, 0));
+        coverage.merge(LineCoverage.of(Arrays.asList(1, null, 3, null, 0)));
+
+        assertEquals(Arrays.asList(1, 2, 3, null, 0), coverage);
+    }
+}
@@ -1,5 +1,6 @@
 package com.uber.jenkins.phabricator.coverage;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
 import org.junit.Test;
@@ -18,6 +19,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import hudson.FilePath;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -145,6 +148,61 @@ public class XmlCoverageProviderTest {
         assertNull(partialMatchCoverage);
     }
 
+    @Test
+    public void domParserMatchesStreamingParser() {
+        Set<String> includeFiles = new HashSet<>(Arrays.asList("github.com/uber/go-torch/main.go",
+                "src/Example/Example.php", "com/uber/nullaway/jarinfer/StubxWriter.java"));
+        String[] reports = {TEST_COVERAGE_FILE, TEST_COVERAGE_FILE_MULTIPLE_INCLUDE, "jacoco-coverage.xml",
+                "clover-phpunit-coverage.xml"};
+        for (String report : reports) {
+            Set<File> files = getResources(report);
+            CoverageProvider streaming = new XmlCoverageProvider(files, includeFiles);
+            System.setProperty(XmlCoverageProvider.USE_DOM_PARSER_PROPERTY, "true");
+            CoverageProvider dom;
+            try {
+                dom = new XmlCoverageProvider(files, includeFiles);
+            } finally {
+                System.clearProperty(XmlCoverageProvider.USE_DOM_PARSER_PROPERTY);
+            }
+
+            assertEquals(report, dom.getMetrics(), streaming.getMetrics());
+            assertEquals(report, dom.getLineCoverage(), streaming.getLineCoverage());
+        }
+    }
+
+    @Test
+    public void overlappingReportsAreMerged() throws IOException {
+        Set<File> single = getResources(TEST_COVERAGE_FILE);
+        File copy = tmp.newFile("copy-" + TEST_COVERAGE_FILE);
+        FileUtils.copyFile(single.iterator().next(), copy);
+        Set<File> both = new HashSet<>(single);
+        both.add(copy);
+
+        CoverageProvider once = new XmlCoverageProvider(single);
+        CoverageProvider twice = new XmlCoverageProvider(both);
+
+        String file = "github.com/uber/go-torch/visualization/visualization.go";
+        assertEquals(2 * once.getLineCoverage().get(file).get(66), twice.getLineCoverage().get(file).get(66)
+                .longValue());
+        assertEquals(once.getLineCoverage().get(file).size(), twice.getLineCoverage().get(file).size());
+        assertEquals(2 * once.getMetrics().getLinesCovered(), twice.getMetrics().getLinesCovered(), 0.001f);
+        assertEquals(once.getMetrics().getLineCoveragePercent(), twice.getMetrics().getLineCoveragePercent(), 0.001f);
+    }
+
+    @Test
+    public void parseOnAgent() {
+        Set<String> includeFiles = new HashSet<>(Arrays.asList("github.com/uber/go-torch/main.go",
+                "github.com/uber/go-torch/graph/graph.go"));
+        Set<File> reports = getResources(TEST_COVERAGE_FILE_1, TEST_COVERAGE_FILE_2, TEST_COVERAGE_FILE_3);
+        CoverageProvider local = new XmlCoverageProvider(reports, includeFiles);
+        CoverageProvider agent = new XmlCoverageProvider(new FilePath(tmp.getRoot()), "go-torch-coverage*.xml",
+                IncludeFileIndex.of(includeFiles));
+
+        assertEquals(local.getMetrics(), agent.getMetrics());
+        assertEquals(local.getLineCoverage(), agent.getLineCoverage());
+        assertEquals(includeFiles, agent.getLineCoverage().keySet());
+    }
+
     @Test(expected = IllegalStateException.class)
     public void invalidCoverage() {
         CoverageProvider provider = new XmlCoverageProvider(getResources(TEST_COVERAGE_FILE_INVALID));
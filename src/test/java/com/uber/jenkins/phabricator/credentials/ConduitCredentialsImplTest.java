@@ -26,6 +26,8 @@ import com.uber.jenkins.phabricator.utils.TestUtils;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class ConduitCredentialsImplTest extends BuildIntegrationTest {
 
@@ -45,6 +47,15 @@ public class ConduitCredentialsImplTest extends BuildIntegrationTest {
         assertEquals(TEST_GATEWAY, conduitCredentials.getGateway());
     }
 
+    @Test
+    public void compressRequestsDefaultsToOff() {
+        ConduitCredentialsImpl conduitCredentials = (ConduitCredentialsImpl) TestUtils.getConduitCredentials(TEST_URL,
+                null);
+        assertFalse(conduitCredentials.isCompressRequests());
+        conduitCredentials.setCompressRequests(true);
+        assertTrue(conduitCredentials.isCompressRequests());
+    }
+
     @Override
     protected void addBuildStep() {
         // Do nothing.
@@ -30,10 +30,17 @@ import net.sf.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class PostCommentTaskTest {
 
@@ -64,6 +71,65 @@ public class PostCommentTaskTest {
         assert result == Task.Result.FAILURE;
     }
 
+    @Test
+    public void testPostDifferentialNetworkFailure() throws Exception {
+        doThrow(new IOException("connection reset")).when(differentialClient).postComment(
+                anyString(),
+                anyString(),
+                anyBoolean(),
+                anyString()
+        );
+
+        assert new PostCommentTask(logger, differentialClient, TEST_REVISION_ID,
+                TEST_COMMENT, TEST_COMMENT_ACTION).run() == Task.Result.FAILURE;
+    }
+
+    @Test
+    public void testPostDifferentialUnavailableIsQueued() throws Exception {
+        doThrow(new ConduitAPIException("unavailable", 503)).when(differentialClient).postComment(
+                anyString(),
+                anyString(),
+                anyBoolean(),
+                anyString()
+        );
+        doReturn(true).when(differentialClient).queueComment(TEST_REVISION_ID, TEST_COMMENT, false,
+                TEST_COMMENT_ACTION);
+
+        assert new PostCommentTask(logger, differentialClient, TEST_REVISION_ID,
+                TEST_COMMENT, TEST_COMMENT_ACTION).run() == Task.Result.SUCCESS;
+        verify(differentialClient, times(1)).postComment(anyString(), anyString(), anyBoolean(), anyString());
+    }
+
+    @Test
+    public void testPostDifferentialConnectFailureIsQueued() throws Exception {
+        doThrow(new ConnectException("connection refused")).when(differentialClient).postComment(
+                anyString(),
+                anyString(),
+                anyBoolean(),
+                anyString()
+        );
+        doReturn(true).when(differentialClient).queueComment(TEST_REVISION_ID, TEST_COMMENT, false,
+                TEST_COMMENT_ACTION);
+
+        assert new PostCommentTask(logger, differentialClient, TEST_REVISION_ID,
+                TEST_COMMENT, TEST_COMMENT_ACTION).run() == Task.Result.SUCCESS;
+    }
+
+    @Test
+    public void testPostDifferentialReadTimeoutIsNotQueued() throws Exception {
+        doThrow(new SocketTimeoutException("read timed out")).when(differentialClient).postComment(
+                anyString(),
+                anyString(),
+                anyBoolean(),
+                anyString()
+        );
+        doReturn(true).when(differentialClient).queueComment(anyString(), anyString(), anyBoolean(), anyString());
+
+        assert new PostCommentTask(logger, differentialClient, TEST_REVISION_ID,
+                TEST_COMMENT, TEST_COMMENT_ACTION).run() == Task.Result.FAILURE;
+        verify(differentialClient, never()).queueComment(anyString(), anyString(), anyBoolean(), anyString());
+    }
+
     @Test
     public void testPostDifferentialSuccess() throws Exception {
         doReturn(new JSONObject()).when(differentialClient).postComment(
@@ -3,19 +3,30 @@ package com.uber.jenkins.phabricator.tasks;
 import com.uber.jenkins.phabricator.conduit.ConduitAPIException;
 import com.uber.jenkins.phabricator.conduit.DifferentialClient;
 import com.uber.jenkins.phabricator.conduit.HarbormasterClient.MessageType;
+import com.uber.jenkins.phabricator.lint.LintResult;
+import com.uber.jenkins.phabricator.lint.LintResults;
+import com.uber.jenkins.phabricator.unit.UnitResult;
+import com.uber.jenkins.phabricator.unit.UnitResults;
 import com.uber.jenkins.phabricator.utils.TestUtils;
 
 import net.sf.json.JSONObject;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class SendHarbormasterResultTaskTest {
@@ -72,6 +83,126 @@ public class SendHarbormasterResultTaskTest {
         assertEquals(Task.Result.FAILURE, getResult());
     }
 
+    @Test
+    public void testSplitLargeResults() throws Exception {
+        when(diffClient.sendHarbormasterMessage(anyString(), any(MessageType.class), any(), any(),
+                any())).thenReturn(validResponse);
+
+        assertEquals(Task.Result.SUCCESS, getSplitResult());
+
+        ArgumentCaptor<UnitResults> units = ArgumentCaptor.forClass(UnitResults.class);
+        ArgumentCaptor<Map> coverage = ArgumentCaptor.forClass(Map.class);
+        ArgumentCaptor<LintResults> lint = ArgumentCaptor.forClass(LintResults.class);
+        verify(diffClient, times(6)).sendHarbormasterMessage(eq(TestUtils.TEST_PHID), eq(MessageType.work),
+                units.capture(), coverage.capture(), lint.capture());
+        verify(diffClient).sendHarbormasterMessage(TestUtils.TEST_PHID, MessageType.fail, null, null, null);
+
+        int unitCount = 0;
+        int lintCount = 0;
+        int fileCount = 0;
+        for (int i = 0; i < 6; i++) {
+            unitCount += units.getAllValues().get(i) == null ? 0 : units.getAllValues().get(i).getResults().size();
+            lintCount += lint.getAllValues().get(i) == null ? 0 : lint.getAllValues().get(i).getResults().size();
+            fileCount += coverage.getAllValues().get(i) == null ? 0 : coverage.getAllValues().get(i).size();
+        }
+        assertEquals(3, unitCount);
+        assertEquals(1, lintCount);
+        assertEquals(2, fileCount);
+    }
+
+    @Test
+    public void testSplitStopsOnError() throws Exception {
+        when(diffClient.sendHarbormasterMessage(anyString(), eq(MessageType.work), any(), any(),
+                any())).thenReturn(getErrorResponse());
+        when(diffClient.sendHarbormasterMessage(TestUtils.TEST_PHID, MessageType.fail, null, null, null)).thenReturn(
+                validResponse);
+
+        assertEquals(Task.Result.SUCCESS, getSplitResult());
+        verify(diffClient, times(1)).sendHarbormasterMessage(anyString(), eq(MessageType.work),
+                any(), any(), any());
+    }
+
+    @Test
+    public void testUnsentPartsAreQueuedWhileUnavailable() throws Exception {
+        when(diffClient.sendHarbormasterMessage(anyString(), eq(MessageType.work), any(), any(),
+                any())).thenReturn(validResponse).thenReturn(validResponse).thenThrow(IOException.class);
+        when(diffClient.queueHarbormasterMessage(anyString(), any(MessageType.class), any(), any(),
+                any())).thenReturn(true);
+
+        assertEquals(Task.Result.SUCCESS, getSplitResult());
+        verify(diffClient, times(3)).sendHarbormasterMessage(anyString(), eq(MessageType.work),
+                any(), any(), any());
+        verify(diffClient, times(4)).queueHarbormasterMessage(anyString(), eq(MessageType.work),
+                any(), any(), any());
+        verify(diffClient).queueHarbormasterMessage(TestUtils.TEST_PHID, MessageType.fail, null, null, null);
+    }
+
+    @Test
+    public void testRejectedResultsAreNotQueued() throws Exception {
+        Map<String, String> coverage = new HashMap<String, String>();
+        coverage.put("filename", "NNNUC");
+        when(diffClient.sendHarbormasterMessage(TestUtils.TEST_PHID, MessageType.fail, null, coverage, null)).thenReturn(
+                getErrorResponse());
+        when(diffClient.sendHarbormasterMessage(TestUtils.TEST_PHID, MessageType.fail, null, null, null)).thenThrow(
+                IOException.class);
+        when(diffClient.queueHarbormasterMessage(anyString(), any(MessageType.class), any(), any(),
+                any())).thenReturn(true);
+
+        assertEquals(Task.Result.SUCCESS, getResult(coverage));
+        verify(diffClient).queueHarbormasterMessage(TestUtils.TEST_PHID, MessageType.fail, null, null, null);
+        verify(diffClient, never()).queueHarbormasterMessage(TestUtils.TEST_PHID, MessageType.fail, null, coverage,
+                null);
+    }
+
+    @Test
+    public void testSplitCountsTheEncodedSize() throws Exception {
+        when(diffClient.sendHarbormasterMessage(anyString(), any(MessageType.class), any(), any(),
+                any())).thenReturn(validResponse);
+        Map<String, String> coverage = new HashMap<String, String>();
+        coverage.put("a.go", "NNCU");
+        coverage.put("b.go", "CCUN");
+
+        // 28 characters of JSON, but each file takes 26 bytes once form-encoded
+        Task.Result result = new SendHarbormasterResultTask(
+                TestUtils.getDefaultLogger(),
+                diffClient,
+                TestUtils.TEST_PHID,
+                MessageType.fail,
+                null,
+                coverage,
+                null,
+                40
+        ).run();
+
+        assertEquals(Task.Result.SUCCESS, result);
+        verify(diffClient, times(2)).sendHarbormasterMessage(eq(TestUtils.TEST_PHID), eq(MessageType.work),
+                any(), any(), any());
+    }
+
+    private Task.Result getSplitResult() {
+        UnitResults unitResults = new UnitResults();
+        for (int i = 0; i < 3; i++) {
+            unitResults.add(new UnitResult("com.uber.Test", "test" + i, null, 1.0f, 0, 0, 1));
+        }
+        LintResults lintResults = new LintResults();
+        lintResults.add(new LintResult("Syntax Error", "EXAMPLE", "error", "path/to/example", 17, 3, ""));
+        Map<String, String> coverage = new HashMap<String, String>();
+        coverage.put("a.go", "NNCU");
+        coverage.put("b.go", "CCUN");
+
+        // Every result gets its own message
+        return new SendHarbormasterResultTask(
+                TestUtils.getDefaultLogger(),
+                diffClient,
+                TestUtils.TEST_PHID,
+                MessageType.fail,
+                unitResults,
+                coverage,
+                lintResults,
+                1
+        ).run();
+    }
+
     private Task.Result getResult(Map<String, String> coverage) {
         return new SendHarbormasterResultTask(
                 TestUtils.getDefaultLogger(),
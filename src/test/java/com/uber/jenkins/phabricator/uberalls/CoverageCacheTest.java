@@ -0,0 +1,95 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.uberalls;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageCacheTest {
+
+    private static final String KEY = CoverageCache.key("http://uberalls", "repo", "sha");
+
+    @Test
+    public void testEntriesExpire() {
+        CoverageCache cache = new CoverageCache(10, 100, 10);
+        cache.putFound(KEY, "{}", ok(), 0);
+        assertTrue(cache.get(KEY).isFresh(99));
+        assertFalse(cache.get(KEY).isFresh(100));
+
+        cache.putNotFound(KEY, 0);
+        assertNull(cache.get(KEY).getBody());
+        assertTrue(cache.get(KEY).isFresh(9));
+        assertFalse(cache.get(KEY).isFresh(10));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        CoverageCache cache = new CoverageCache(2, 100, 100);
+        cache.putFound("a", "a", ok(), 0);
+        cache.putFound("b", "b", ok(), 0);
+        cache.get("a");
+        cache.putFound("c", "c", ok(), 0);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void testRevalidation() {
+        CoverageCache cache = new CoverageCache(10, 100, 10);
+        HttpResponse response = ok();
+        response.addHeader(HttpHeaders.ETAG, "\"v1\"");
+        cache.putFound(KEY, "{}", response, 0);
+
+        HttpGet request = new HttpGet("http://uberalls");
+        cache.get(KEY).addValidators(request);
+        assertEquals("\"v1\"", request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue());
+        assertFalse(request.containsHeader(HttpHeaders.IF_MODIFIED_SINCE));
+
+        cache.putRevalidated(KEY, cache.get(KEY), 200);
+        assertEquals("{}", cache.get(KEY).getBody());
+        assertTrue(cache.get(KEY).isFresh(299));
+    }
+
+    @Test
+    public void testInvalidate() {
+        CoverageCache cache = new CoverageCache(10, 100, 10);
+        cache.putFound(KEY, "{}", ok(), 0);
+        cache.invalidate(KEY);
+        assertNull(cache.get(KEY));
+    }
+
+    private static HttpResponse ok() {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+    }
+}
@@ -0,0 +1,128 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.uberalls;
+
+import net.sf.json.JSONObject;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public class CoverageQueueTest {
+
+    private static final String BASE_URL = "http://uberalls.example.com";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<JSONObject> sent = new ArrayList<JSONObject>();
+    private int statusCode = HttpStatus.SC_OK;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = new File(tmp.getRoot(), CoverageQueue.JOURNAL_NAME);
+    }
+
+    @Test
+    public void testRecordsAreSentAndRemovedFromJournal() throws IOException {
+        CoverageQueue queue = newQueue();
+        queue.add(BASE_URL, record("a"));
+        queue.add(BASE_URL, record("b"));
+        assertEquals(2, Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).size());
+
+        queue.drain();
+        assertEquals(2, sent.size());
+        assertEquals("a", sent.get(0).getString("sha"));
+        assertEquals(0, queue.size());
+        assertEquals(0, Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testRecordsAreKeptWhileUberallsIsDown() throws IOException {
+        CoverageQueue queue = newQueue();
+        queue.add(BASE_URL, record("a"));
+        statusCode = HttpStatus.SC_SERVICE_UNAVAILABLE;
+        queue.drain();
+        assertEquals(1, queue.size());
+
+        statusCode = HttpStatus.SC_OK;
+        queue.drain();
+        assertEquals(0, queue.size());
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void testRejectedRecordsAreDropped() throws IOException {
+        CoverageQueue queue = newQueue();
+        queue.add(BASE_URL, record("a"));
+        statusCode = HttpStatus.SC_BAD_REQUEST;
+        queue.drain();
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testRecordsAreReplayedAfterRestart() throws IOException {
+        CoverageQueue queue = newQueue();
+        queue.add(BASE_URL, record("a"));
+        Files.write(journal.toPath(), "{\"url\": \"torn".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        CoverageQueue restarted = newQueue();
+        restarted.load();
+        assertEquals(1, restarted.size());
+        restarted.drain();
+        assertEquals("a", sent.get(0).getString("sha"));
+        assertEquals(0, restarted.size());
+    }
+
+    private CoverageQueue newQueue() {
+        return new CoverageQueue(journal, (baseURL, record) -> {
+            sent.add(record);
+            return status();
+        }, mock(ScheduledExecutorService.class));
+    }
+
+    private StatusLine status() {
+        return new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, "");
+    }
+
+    private static JSONObject record(String sha) {
+        return new JSONObject().element("sha", sha).element("repository", "repo");
+    }
+}
@@ -17,10 +17,13 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doReturn;
@@ -35,6 +38,7 @@ public class UberallsClientTest extends LocalServerTestBase {
     @Before
     public void setUp() throws Exception {
         super.setUp();
+        CoverageCache.INSTANCE.clear();
     }
 
     @After
@@ -58,6 +62,65 @@ public class UberallsClientTest extends LocalServerTestBase {
         assertEquals("{}", coverage);
     }
 
+    @Test
+    public void testRepeatedCallsReuseClient() throws Exception {
+        this.serverBootstrap.registerHandler("/*", TestUtils.makeHttpHandler(HttpStatus.SC_OK, "{}"));
+        this.start();
+        this.client = getDefaultClient();
+        UberallsClient otherBuild = getDefaultClient();
+        assertSame(client.getClient(), otherBuild.getClient());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("{}", client.getCoverage(TestUtils.TEST_SHA));
+            assertTrue(otherBuild.recordCoverage(TestUtils.TEST_SHA, TestUtils.getDefaultCodeCoverageMetrics()));
+        }
+    }
+
+    @Test
+    public void testGetCoverageIsCached() throws Exception {
+        List<String> requests = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/*", TestUtils.makeHttpHandler(HttpStatus.SC_OK, "{}", requests));
+        this.start();
+        this.client = getDefaultClient();
+        assertEquals("{}", client.getCoverage(TestUtils.TEST_SHA));
+        assertEquals("{}", getDefaultClient().getCoverage(TestUtils.TEST_SHA));
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testGetCoverageNotFoundIsCached() throws Exception {
+        List<String> requests = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/*", TestUtils.makeHttpHandler(HttpStatus.SC_NOT_FOUND, "", requests));
+        this.start();
+        this.client = getDefaultClient();
+        assertNull(client.getCoverage(TestUtils.TEST_SHA));
+        assertNull(client.getCoverage(TestUtils.TEST_SHA));
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testRecordCoverageInvalidatesCachedCoverage() throws Exception {
+        List<String> requests = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/*", TestUtils.makeHttpHandler(HttpStatus.SC_OK, "{}", requests));
+        this.start();
+        this.client = getDefaultClient();
+        assertEquals("{}", client.getCoverage(TestUtils.TEST_SHA));
+        assertTrue(client.recordCoverage(TestUtils.TEST_SHA, TestUtils.getDefaultCodeCoverageMetrics()));
+        assertEquals("{}", client.getCoverage(TestUtils.TEST_SHA));
+        assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void testGetCoverageInternalErrorIsNotCached() throws Exception {
+        List<String> requests = new ArrayList<String>();
+        this.serverBootstrap.registerHandler("/*",
+                TestUtils.makeHttpHandler(HttpStatus.SC_INTERNAL_SERVER_ERROR, "", requests));
+        this.start();
+        this.client = getDefaultClient();
+        assertNull(client.getCoverage(TestUtils.TEST_SHA));
+        assertNull(client.getCoverage(TestUtils.TEST_SHA));
+        assertEquals(2, requests.size());
+    }
+
     @Test
     public void testGetCoverageInternalError() throws Exception {
         this.serverBootstrap.registerHandler("/*", TestUtils.makeHttpHandler(HttpStatus.SC_INTERNAL_SERVER_ERROR, ""));
@@ -0,0 +1,190 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import net.sf.json.JSONObject;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public class DurableQueueTest {
+
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<String> sent = new ArrayList<String>();
+    private String failing;
+    private File journal;
+
+    @Before
+    public void setUp() {
+        journal = new File(tmp.getRoot(), "queue.log");
+    }
+
+    @Test
+    public void testStopsAtTheFirstEntryToRetry() throws IOException {
+        DurableQueue queue = newQueue();
+        queue.add(entry("a"));
+        queue.add(entry("b"));
+        queue.add(entry("c"));
+        failing = "b";
+
+        queue.drain();
+        assertEquals(2, sent.size());
+        assertEquals(2, queue.size());
+        List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals("b", JSONObject.fromObject(lines.get(0)).getString("id"));
+
+        failing = null;
+        queue.drain();
+        assertEquals(0, queue.size());
+        assertEquals("c", sent.get(3));
+    }
+
+    @Test
+    public void testFailingDestinationDoesNotHoldUpOthers() throws IOException {
+        DurableQueue queue = newQueue();
+        queue.add(entry("a", "down"));
+        queue.add(entry("b", "up"));
+        queue.add(entry("c", "down"));
+        failing = "a";
+
+        queue.drain();
+        assertEquals(2, sent.size());
+        assertEquals("b", sent.get(1));
+        assertEquals(2, queue.size());
+
+        failing = null;
+        queue.drain();
+        assertEquals("a", sent.get(2));
+        assertEquals("c", sent.get(3));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testGivesUpAfterTheMaximumAttempts() throws IOException {
+        DurableQueue queue = newQueue();
+        queue.add(entry("a"));
+        queue.add(entry("b"));
+        failing = "a";
+
+        queue.drain();
+        queue.drain();
+        assertEquals(2, queue.size());
+        queue.drain();
+        assertEquals(1, queue.size());
+        queue.drain();
+        assertEquals("b", sent.get(sent.size() - 1));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testGivesUpOnEntriesQueuedTooLongAgo() throws IOException {
+        Files.write(journal.toPath(), (entry("a").element("queuedAt", 0).toString() + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        failing = "a";
+
+        DurableQueue restarted = newQueue();
+        restarted.load();
+        restarted.drain();
+        assertEquals(1, sent.size());
+        assertEquals(0, restarted.size());
+    }
+
+    @Test
+    public void testSenderExceptionsAreRetried() throws IOException {
+        DurableQueue queue = new DurableQueue("test queue", journal, "destination", 10, MAX_RETRY_DELAY_MS,
+                MAX_ATTEMPTS, MAX_AGE_MS, entry -> {
+                    if (failing != null) {
+                        throw new IllegalStateException(failing);
+                    }
+                    sent.add(entry.getString("id"));
+                    return true;
+                }, mock(ScheduledExecutorService.class));
+        queue.add(entry("a"));
+        failing = "broken";
+
+        queue.drain();
+        assertEquals(1, queue.size());
+
+        failing = null;
+        queue.drain();
+        assertEquals(0, queue.size());
+        assertEquals("a", sent.get(0));
+    }
+
+    @Test
+    public void testUnreadableEntriesAreSkipped() throws IOException {
+        newQueue().add(entry("a"));
+        Files.write(journal.toPath(), "{\"id\": \"torn".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        DurableQueue restarted = newQueue();
+        restarted.load();
+        assertEquals(1, restarted.size());
+        restarted.drain();
+        assertEquals("a", sent.get(0));
+    }
+
+    @Test
+    public void testRetryDelayGrowsUpToTheMaximum() {
+        assertEquals(5000, DurableQueue.getRetryDelay(1, MAX_RETRY_DELAY_MS));
+        assertEquals(10000, DurableQueue.getRetryDelay(2, MAX_RETRY_DELAY_MS));
+        assertEquals(MAX_RETRY_DELAY_MS, DurableQueue.getRetryDelay(100, MAX_RETRY_DELAY_MS));
+    }
+
+    private DurableQueue newQueue() {
+        return new DurableQueue("test queue", journal, "destination", 10, MAX_RETRY_DELAY_MS, MAX_ATTEMPTS,
+                MAX_AGE_MS, entry -> {
+                    String id = entry.getString("id");
+                    sent.add(id);
+                    return !id.equals(failing);
+                }, mock(ScheduledExecutorService.class));
+    }
+
+    private static JSONObject entry(String id) {
+        return entry(id, "somewhere");
+    }
+
+    private static JSONObject entry(String id, String destination) {
+        return new JSONObject().element("id", id).element("destination", destination);
+    }
+}
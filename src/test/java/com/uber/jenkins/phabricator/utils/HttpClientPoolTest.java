@@ -0,0 +1,61 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class HttpClientPoolTest {
+
+    @Test
+    public void testClientIsSharedPerGateway() {
+        HttpClientPool pool = new HttpClientPool("test");
+        assertSame(pool.getClient(new HttpHost("foo.bar", 443, "https")),
+                pool.getClient(new HttpHost("foo.bar", 443, "https")));
+    }
+
+    @Test
+    public void testClientsAreSeparatePerGateway() {
+        HttpClientPool pool = new HttpClientPool("test");
+        assertNotSame(pool.getClient(new HttpHost("foo.bar", 443, "https")),
+                pool.getClient(new HttpHost("foo.bar", 8080, "http")));
+    }
+
+    @Test
+    public void testSettingsCanBeSetPerHost() {
+        String prefix = HttpClientPool.class.getName() + ".test.";
+        System.setProperty(prefix + "socketTimeout", "1000");
+        System.setProperty(prefix + "slow.bar.socketTimeout", "5000");
+        try {
+            HttpClientPool pool = new HttpClientPool("test");
+            assertEquals(5000, pool.getSetting(new HttpHost("slow.bar", 443, "https"), "socketTimeout", 60000));
+            assertEquals(1000, pool.getSetting(new HttpHost("foo.bar", 443, "https"), "socketTimeout", 60000));
+            assertEquals(10000, pool.getSetting(new HttpHost("foo.bar", 443, "https"), "connectTimeout", 10000));
+        } finally {
+            System.clearProperty(prefix + "socketTimeout");
+            System.clearProperty(prefix + "slow.bar.socketTimeout");
+        }
+    }
+}
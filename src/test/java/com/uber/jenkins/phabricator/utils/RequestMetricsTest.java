@@ -0,0 +1,96 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestMetricsTest {
+
+    private final RequestMetrics metrics = new RequestMetrics("test_conduit", "method", "Conduit");
+
+    @Test
+    public void testCountsRequestsAndErrors() throws IOException {
+        metrics.record("differential.querydiffs", 0, -1, -1, false);
+        metrics.record("differential.querydiffs", 0, -1, -1, true);
+        metrics.record("harbormaster.sendmessage", 0, -1, -1, false);
+
+        String scrape = scrape();
+        assertTrue(scrape.contains("# TYPE test_conduit_requests_total counter\n"));
+        assertTrue(scrape.contains("test_conduit_requests_total{method=\"differential.querydiffs\"} 2\n"));
+        assertTrue(scrape.contains("test_conduit_errors_total{method=\"differential.querydiffs\"} 1\n"));
+        assertTrue(scrape.contains("test_conduit_errors_total{method=\"harbormaster.sendmessage\"} 0\n"));
+    }
+
+    @Test
+    public void testLatencyBucketsAreCumulative() throws IOException {
+        metrics.record("differential.createcomment", TimeUnit.MILLISECONDS.toNanos(3), -1, -1, false);
+        metrics.record("differential.createcomment", TimeUnit.MILLISECONDS.toNanos(200), -1, -1, false);
+        metrics.record("differential.createcomment", TimeUnit.MINUTES.toNanos(2), -1, -1, false);
+
+        String scrape = scrape();
+        String bucket = "test_conduit_request_duration_seconds_bucket{method=\"differential.createcomment\",le=";
+        assertTrue(scrape.contains(bucket + "\"0.005\"} 1\n"));
+        assertTrue(scrape.contains(bucket + "\"0.1\"} 1\n"));
+        assertTrue(scrape.contains(bucket + "\"0.25\"} 2\n"));
+        assertTrue(scrape.contains(bucket + "\"60\"} 2\n"));
+        assertTrue(scrape.contains(bucket + "\"+Inf\"} 3\n"));
+        assertTrue(scrape.contains(
+                "test_conduit_request_duration_seconds_sum{method=\"differential.createcomment\"} 120.203\n"));
+        assertTrue(scrape.contains(
+                "test_conduit_request_duration_seconds_count{method=\"differential.createcomment\"} 3\n"));
+    }
+
+    @Test
+    public void testUnknownSizesAreNotObserved() throws IOException {
+        metrics.record("harbormaster.sendmessage", 0, 5000, -1, false);
+
+        String scrape = scrape();
+        assertTrue(scrape.contains(
+                "test_conduit_request_size_bytes_bucket{method=\"harbormaster.sendmessage\",le=\"4096\"} 0\n"));
+        assertTrue(scrape.contains(
+                "test_conduit_request_size_bytes_bucket{method=\"harbormaster.sendmessage\",le=\"16384\"} 1\n"));
+        assertTrue(scrape.contains("test_conduit_request_size_bytes_sum{method=\"harbormaster.sendmessage\"} 5000\n"));
+        assertTrue(scrape.contains(
+                "test_conduit_response_size_bytes_count{method=\"harbormaster.sendmessage\"} 0\n"));
+    }
+
+    @Test
+    public void testLabelValuesAreEscaped() throws IOException {
+        metrics.record("odd\"name\\", 0, -1, -1, false);
+
+        String scrape = scrape();
+        assertTrue(scrape.contains("test_conduit_requests_total{method=\"odd\\\"name\\\\\"} 1\n"));
+        assertFalse(scrape.contains("odd\"name"));
+    }
+
+    private String scrape() throws IOException {
+        StringWriter writer = new StringWriter();
+        metrics.write(writer);
+        return writer.toString();
+    }
+}
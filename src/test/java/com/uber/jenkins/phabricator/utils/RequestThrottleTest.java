@@ -0,0 +1,99 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestThrottleTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testBurstThenSteadyRate() {
+        RequestThrottle throttle = new RequestThrottle(4, 0, 10000, now::get);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, throttle.reserve(Long.MAX_VALUE));
+        }
+        assertEquals(SECOND / 4, throttle.reserve(Long.MAX_VALUE));
+        assertEquals(SECOND / 2, throttle.reserve(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testIdleTimeRefillsBucket() {
+        RequestThrottle throttle = new RequestThrottle(2, 0, 10000, now::get);
+        throttle.reserve(Long.MAX_VALUE);
+        throttle.reserve(Long.MAX_VALUE);
+        assertEquals(SECOND / 2, throttle.reserve(Long.MAX_VALUE));
+
+        now.set(10 * SECOND);
+        assertEquals(0, throttle.reserve(Long.MAX_VALUE));
+        assertEquals(0, throttle.reserve(Long.MAX_VALUE));
+        assertEquals(SECOND / 2, throttle.reserve(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testReservationPastDeadlineIsRefused() {
+        RequestThrottle throttle = new RequestThrottle(1, 0, 10000, now::get);
+        assertEquals(0, throttle.reserve(0));
+        assertEquals(-1, throttle.reserve(SECOND / 2));
+        assertEquals(SECOND, throttle.reserve(SECOND));
+    }
+
+    @Test
+    public void testNoRateLimit() {
+        RequestThrottle throttle = new RequestThrottle(0, 0, 10000, now::get);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, throttle.reserve(0));
+        }
+    }
+
+    @Test
+    public void testInFlightCap() throws InterruptedException {
+        RequestThrottle throttle = new RequestThrottle(0, 2, 10);
+        assertTrue(throttle.acquire());
+        assertTrue(throttle.acquire());
+        assertFalse(throttle.acquire());
+
+        throttle.release();
+        assertTrue(throttle.acquire());
+    }
+
+    @Test
+    public void testTimedOutWaitReleasesSlot() throws InterruptedException {
+        RequestThrottle throttle = new RequestThrottle(1, 1, 10, now::get);
+        assertTrue(throttle.acquire());
+        throttle.release();
+
+        // The next token is a second away, so this gives up, and must not keep the in-flight slot
+        assertFalse(throttle.acquire());
+        now.set(SECOND);
+        assertTrue(throttle.acquire());
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamingJsonFilterTest {
+
+    @Test
+    public void testKeepsEverythingByDefault() throws IOException {
+        String json = "{\"a\": [1, 2.5e3, true, null], \"b\": {\"c\": \"d \\\"e\\\" \\u00e9\"}, \"f\": []}";
+        assertEquals("{\"a\":[1,2.5e3,true,null],\"b\":{\"c\":\"d \\\"e\\\" \\u00e9\"},\"f\":[]}",
+                filter(json, "nothing"));
+    }
+
+    @Test
+    public void testSkipsFields() throws IOException {
+        String json = "{\"skipped\": {\"x\": [1, 2]}, \"kept\": 1, \"nested\": {\"skipped\": \"y\", \"z\": 2}}";
+        assertEquals("{\"kept\":1,\"nested\":{\"z\":2}}", filter(json, "skipped|nested\\.skipped"));
+    }
+
+    @Test
+    public void testSkipsFieldsOfArrayElements() throws IOException {
+        String json = "{\"result\": {\"123\": {\"id\": \"123\", \"changes\": ["
+                + "{\"hunks\": [{\"corpus\": \"+foo\\n-bar\"}], \"currentPath\": \"a.go\"},"
+                + "{\"currentPath\": \"b.go\", \"hunks\": []}]}}}";
+        assertEquals("{\"result\":{\"123\":{\"id\":\"123\",\"changes\":[{\"currentPath\":\"a.go\"},"
+                + "{\"currentPath\":\"b.go\"}]}}}", filter(json, "result\\.[^.]+\\.changes\\.\\*\\.hunks"));
+    }
+
+    @Test
+    public void testSkipsArrayElements() throws IOException {
+        assertEquals("{\"a\":[]}", filter("{\"a\": [{\"b\": 1}, {\"b\": 2}]}", "a\\.\\*"));
+    }
+
+    @Test
+    public void testLiterals() throws IOException {
+        assertEquals("null", filter(" null ", "nothing"));
+        assertEquals("\"\"", filter("\"\"", "nothing"));
+    }
+
+    @Test
+    public void testLargeSkippedValue() throws IOException {
+        final int size = 10 * 1024 * 1024;
+        Reader in = new Reader() {
+            private final String prefix = "{\"kept\": 1, \"skipped\": \"";
+            private final String suffix = "\"}";
+            private int position;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                int total = prefix.length() + size + suffix.length();
+                if (position == total) {
+                    return -1;
+                }
+                int count = Math.min(length, total - position);
+                for (int i = 0; i < count; i++, position++) {
+                    if (position < prefix.length()) {
+                        buffer[offset + i] = prefix.charAt(position);
+                    } else if (position < prefix.length() + size) {
+                        buffer[offset + i] = 'x';
+                    } else {
+                        buffer[offset + i] = suffix.charAt(position - prefix.length() - size);
+                    }
+                }
+                return count;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertEquals("{\"kept\":1}", StreamingJsonFilter.filter(in, path -> path.equals("skipped")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        filter("{\"a\": [1, 2", "nothing");
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingValue() throws IOException {
+        filter("{\"a\": }", "nothing");
+    }
+
+    @Test(expected = IOException.class)
+    public void testTrailingData() throws IOException {
+        filter("{} {}", "nothing");
+    }
+
+    @Test(expected = IOException.class)
+    public void testEmpty() throws IOException {
+        filter("", "nothing");
+    }
+
+    private static String filter(String json, String skipped) throws IOException {
+        return StreamingJsonFilter.filter(new StringReader(json), path -> path.matches(skipped));
+    }
+}
@@ -0,0 +1,383 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates the coverage reports, JUnit results, lint results and differential.querydiffs response of a project of
+ * a given size. The same seed always generates the same workload, so benchmarks and stress tests can run against
+ * realistic sizes without checking in huge fixtures.
+ */
+public final class SyntheticWorkload {
+
+    public enum CoverageFormat {
+        COBERTURA, CLOVER, JACOCO
+    }
+
+    public static final String SOURCE_ROOT = "src/main/java/";
+    // Where Clover reports the absolute paths of the files from
+    public static final String WORKSPACE = "/home/jenkins/workspace/synthetic/";
+
+    private static final int FILES_PER_PACKAGE = 50;
+    private static final int TESTS_PER_SUITE = 50;
+    private static final String[] LINT_SEVERITIES = {"advice", "autofix", "warning", "error", "disabled"};
+
+    private final long seed;
+    private final int files;
+    private final int linesPerFile;
+    private final long linesCovered;
+    private final long linesValid;
+
+    /**
+     * @param seed The seed everything is generated from
+     * @param files The number of source files of the project
+     * @param linesPerFile The number of lines of each file
+     */
+    public SyntheticWorkload(long seed, int files, int linesPerFile) {
+        this.seed = seed;
+        this.files = files;
+        this.linesPerFile = linesPerFile;
+
+        long covered = 0;
+        long valid = 0;
+        for (int file = 0; file < files; file++) {
+            for (int hitCount : lineHits(file)) {
+                valid += hitCount >= 0 ? 1 : 0;
+                covered += hitCount > 0 ? 1 : 0;
+            }
+        }
+        this.linesCovered = covered;
+        this.linesValid = valid;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getLinesCovered() {
+        return linesCovered;
+    }
+
+    public long getLinesValid() {
+        return linesValid;
+    }
+
+    /**
+     * @param file The index of a file
+     * @return the path of the file, relative to the project root
+     */
+    public String path(int file) {
+        return SOURCE_ROOT + packageName(file) + "/File" + file + ".java";
+    }
+
+    /**
+     * Get the hit counts of a file, which only depend on the seed and the file
+     *
+     * @param file The index of a file
+     * @return the hit count of each line, or -1 if the line is not executable
+     */
+    public int[] lineHits(int file) {
+        Random random = random(file);
+        int[] hits = new int[linesPerFile];
+        for (int line = 0; line < linesPerFile; line++) {
+            // Roughly a third of the lines aren't executable, and most of the others are covered
+            int roll = random.nextInt(10);
+            hits[line] = roll < 3 ? -1 : (roll < 5 ? 0 : 1 + random.nextInt(20));
+        }
+        return hits;
+    }
+
+    /**
+     * Get the files changed by a diff, spread evenly over the project
+     *
+     * @param count The number of changed files
+     * @return the paths of the changed files, relative to the project root
+     */
+    public Set<String> changedFiles(int count) {
+        Set<String> changed = new LinkedHashSet<String>();
+        int step = Math.max(1, files / Math.max(1, count));
+        for (int i = 0; i < Math.min(count, files); i++) {
+            changed.add(path(i * step));
+        }
+        return changed;
+    }
+
+    /**
+     * Write the coverage report of the whole project
+     *
+     * @param format The format of the report
+     * @param report Where to write it
+     * @throws IOException If the report can't be written
+     */
+    public void writeCoverage(CoverageFormat format, File report) throws IOException {
+        try (Writer out = writer(report)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            switch (format) {
+                case COBERTURA:
+                    writeCobertura(out);
+                    break;
+                case CLOVER:
+                    writeClover(out);
+                    break;
+                case JACOCO:
+                    writeJacoco(out);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown coverage format " + format);
+            }
+        }
+    }
+
+    /**
+     * Write JUnit results, where a few tests fail or are skipped
+     *
+     * @param report Where to write them
+     * @param tests The number of test cases
+     * @throws IOException If the results can't be written
+     */
+    public void writeJUnit(File report, int tests) throws IOException {
+        Random random = random(-1);
+        try (Writer out = writer(report)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n");
+            for (int suite = 0; suite * TESTS_PER_SUITE < tests; suite++) {
+                int cases = Math.min(TESTS_PER_SUITE, tests - suite * TESTS_PER_SUITE);
+                out.write("<testsuite name=\"" + suiteName(suite) + "\" tests=\"" + cases + "\">\n");
+                for (int test = 0; test < cases; test++) {
+                    int roll = random.nextInt(100);
+                    out.write("<testcase classname=\"" + suiteName(suite) + "\" name=\"testCase" + test
+                            + "\" time=\"" + random.nextInt(2000) / 1000.0 + "\">");
+                    if (roll < 2) {
+                        out.write("<failure message=\"expected:&lt;1&gt; but was:&lt;2&gt;\">"
+                                + "java.lang.AssertionError: expected:&lt;1&gt; but was:&lt;2&gt;\n\tat "
+                                + suiteName(suite) + ".testCase" + test + "(" + suiteName(suite) + ".java:"
+                                + (1 + random.nextInt(linesPerFile)) + ")</failure>");
+                    } else if (roll == 2) {
+                        out.write("<skipped/>");
+                    }
+                    out.write("</testcase>\n");
+                }
+                out.write("</testsuite>\n");
+            }
+            out.write("</testsuites>\n");
+        }
+    }
+
+    /**
+     * Write lint results in the JSON lines format the notifier reads
+     *
+     * @param file Where to write them
+     * @param results The number of lint results
+     * @throws IOException If the results can't be written
+     */
+    public void writeLint(File file, int results) throws IOException {
+        Random random = random(-2);
+        try (Writer out = writer(file)) {
+            for (int i = 0; i < results; i++) {
+                JSONObject lint = new JSONObject()
+                        .element("name", "Lint" + random.nextInt(50))
+                        .element("code", "LINT" + random.nextInt(500))
+                        .element("severity", LINT_SEVERITIES[random.nextInt(LINT_SEVERITIES.length)])
+                        .element("path", path(random.nextInt(files)))
+                        .element("line", 1 + random.nextInt(linesPerFile))
+                        .element("char", random.nextInt(120))
+                        .element("description", "Line is too long, consider wrapping it");
+                out.write(lint.toString());
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Get the differential.querydiffs response of a diff changing files of the project, with their hunks
+     *
+     * @param diffID The id of the diff
+     * @param changedFiles The number of changed files, see {@link #changedFiles(int)}
+     * @param linesPerHunk The number of changed lines of each file
+     * @return the conduit response
+     */
+    public JSONObject queryDiffsResponse(String diffID, int changedFiles, int linesPerHunk) {
+        JSONArray changes = new JSONArray();
+        for (String path : changedFiles(changedFiles)) {
+            StringBuilder corpus = new StringBuilder();
+            for (int line = 0; line < linesPerHunk; line++) {
+                corpus.append(line % 2 == 0 ? '-' : '+').append("        int value").append(line).append(" = ")
+                        .append(line).append(";\n");
+            }
+            JSONObject hunk = new JSONObject()
+                    .element("oldOffset", "1")
+                    .element("newOffset", "1")
+                    .element("oldLength", String.valueOf((linesPerHunk + 1) / 2))
+                    .element("newLength", String.valueOf(linesPerHunk / 2))
+                    .element("corpus", corpus.toString());
+            changes.add(new JSONObject()
+                    .element("currentPath", path)
+                    .element("oldPath", path)
+                    .element("type", "2")
+                    .element("hunks", new JSONArray().element(hunk)));
+        }
+        JSONObject diff = new JSONObject()
+                .element("id", diffID)
+                .element("revisionID", String.valueOf(1000 + Math.abs(seed % 1000)))
+                .element("sourceControlBaseRevision", String.format("%040x", Math.abs(seed)))
+                .element("branch", "synthetic")
+                .element("authorName", "synthetic")
+                .element("authorEmail", "synthetic@example.com")
+                .element("changes", changes);
+        return new JSONObject().element("result", new JSONObject().element(diffID, diff));
+    }
+
+    private void writeCobertura(Writer out) throws IOException {
+        out.write("<coverage lines-covered=\"" + linesCovered + "\" lines-valid=\"" + linesValid
+                + "\" branches-covered=\"0\" branches-valid=\"0\" version=\"\" timestamp=\"0\">\n<packages>\n");
+        for (int file = 0; file < files; file++) {
+            if (file % FILES_PER_PACKAGE == 0) {
+                out.write("<package name=\"" + packageName(file) + "\" line-rate=\"0\" branch-rate=\"0\">\n"
+                        + "<classes>\n");
+            }
+            int[] hits = lineHits(file);
+            out.write("<class name=\"File" + file + "\" filename=\"" + path(file) + "\">\n<methods>\n"
+                    + "<method name=\"run\" signature=\"\">\n<lines>\n");
+            writeCoberturaLine(out, hits, firstExecutable(hits));
+            out.write("</lines>\n</method>\n</methods>\n<lines>\n");
+            for (int line = 0; line < hits.length; line++) {
+                writeCoberturaLine(out, hits, line);
+            }
+            out.write("</lines>\n</class>\n");
+            if (isLastOfPackage(file)) {
+                out.write("</classes>\n</package>\n");
+            }
+        }
+        out.write("</packages>\n</coverage>\n");
+    }
+
+    private void writeCoberturaLine(Writer out, int[] hits, int line) throws IOException {
+        if (line >= 0 && hits[line] >= 0) {
+            out.write("<line number=\"" + (line + 1) + "\" hits=\"" + hits[line] + "\" branch=\"false\"/>\n");
+        }
+    }
+
+    private void writeClover(Writer out) throws IOException {
+        out.write("<coverage generated=\"0\">\n<project timestamp=\"0\">\n");
+        for (int file = 0; file < files; file++) {
+            if (file % FILES_PER_PACKAGE == 0) {
+                out.write("<package name=\"" + packageName(file) + "\">\n");
+            }
+            int[] hits = lineHits(file);
+            long covered = 0;
+            long valid = 0;
+            for (int hitCount : hits) {
+                valid += hitCount >= 0 ? 1 : 0;
+                covered += hitCount > 0 ? 1 : 0;
+            }
+            out.write("<file name=\"" + WORKSPACE + path(file) + "\">\n<class name=\"File" + file + "\">\n"
+                    + "<metrics methods=\"1\" coveredmethods=\"1\" statements=\"" + valid
+                    + "\" coveredstatements=\"" + covered + "\"/>\n</class>\n");
+            out.write("<line num=\"" + (firstExecutable(hits) + 1)
+                    + "\" type=\"method\" name=\"run\" count=\"1\"/>\n");
+            for (int line = 0; line < hits.length; line++) {
+                if (hits[line] >= 0) {
+                    out.write("<line num=\"" + (line + 1) + "\" type=\"stmt\" count=\"" + hits[line] + "\"/>\n");
+                }
+            }
+            out.write("</file>\n");
+            if (isLastOfPackage(file)) {
+                out.write("</package>\n");
+            }
+        }
+        out.write("<metrics files=\"" + files + "\" statements=\"" + linesValid + "\" coveredstatements=\""
+                + linesCovered + "\"/>\n</project>\n</coverage>\n");
+    }
+
+    private void writeJacoco(Writer out) throws IOException {
+        out.write("<report name=\"synthetic\">\n");
+        for (int file = 0; file < files; file++) {
+            if (file % FILES_PER_PACKAGE == 0) {
+                out.write("<package name=\"" + packageName(file) + "\">\n");
+            }
+            // JaCoCo reports paths relative to the source root
+            out.write("<sourcefile name=\"File" + file + ".java\">\n");
+            int[] hits = lineHits(file);
+            for (int line = 0; line < hits.length; line++) {
+                if (hits[line] >= 0) {
+                    out.write("<line nr=\"" + (line + 1) + "\" mi=\"" + (hits[line] == 0 ? 3 : 0) + "\" ci=\""
+                            + hits[line] + "\" mb=\"0\" cb=\"0\"/>\n");
+                }
+            }
+            out.write("</sourcefile>\n");
+            if (isLastOfPackage(file)) {
+                out.write("</package>\n");
+            }
+        }
+        writeJacocoCounter(out, "LINE", linesCovered, linesValid);
+        writeJacocoCounter(out, "BRANCH", 0, 0);
+        writeJacocoCounter(out, "METHOD", files, files);
+        writeJacocoCounter(out, "CLASS", files, files);
+        out.write("</report>\n");
+    }
+
+    private void writeJacocoCounter(Writer out, String type, long covered, long valid) throws IOException {
+        out.write("<counter type=\"" + type + "\" missed=\"" + (valid - covered) + "\" covered=\"" + covered
+                + "\"/>\n");
+    }
+
+    private boolean isLastOfPackage(int file) {
+        return file % FILES_PER_PACKAGE == FILES_PER_PACKAGE - 1 || file == files - 1;
+    }
+
+    private Random random(int stream) {
+        // Each file, and the tests and lint results, get their own stream so they don't depend on each other
+        return new Random(seed ^ (stream * 0x9E3779B97F4A7C15L));
+    }
+
+    private static int firstExecutable(int[] hits) {
+        for (int line = 0; line < hits.length; line++) {
+            if (hits[line] >= 0) {
+                return line;
+            }
+        }
+        return -1;
+    }
+
+    private static String packageName(int file) {
+        return "com/example/package" + file / FILES_PER_PACKAGE;
+    }
+
+    private static String suiteName(int suite) {
+        return "com.example.package" + suite / FILES_PER_PACKAGE + ".Suite" + suite + "Test";
+    }
+
+    private static Writer writer(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import com.uber.jenkins.phabricator.conduit.Differential;
+import com.uber.jenkins.phabricator.coverage.CoverageConverter;
+import com.uber.jenkins.phabricator.coverage.CoverageProvider;
+import com.uber.jenkins.phabricator.coverage.XmlCoverageProvider;
+import com.uber.jenkins.phabricator.lint.LintResult;
+import com.uber.jenkins.phabricator.unit.JUnitTestProvider;
+import com.uber.jenkins.phabricator.unit.UnitResults;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import hudson.tasks.junit.TestResult;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticWorkloadTest {
+
+    private static final String DIFF_ID = "123";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSameSeedSameWorkload() throws IOException {
+        SyntheticWorkload workload = new SyntheticWorkload(7, 60, 100);
+        SyntheticWorkload same = new SyntheticWorkload(7, 60, 100);
+        SyntheticWorkload other = new SyntheticWorkload(8, 60, 100);
+
+        File report = tmp.newFile();
+        File sameReport = tmp.newFile();
+        File otherReport = tmp.newFile();
+        workload.writeCoverage(SyntheticWorkload.CoverageFormat.COBERTURA, report);
+        same.writeCoverage(SyntheticWorkload.CoverageFormat.COBERTURA, sameReport);
+        other.writeCoverage(SyntheticWorkload.CoverageFormat.COBERTURA, otherReport);
+
+        assertTrue(FileUtils.contentEquals(report, sameReport));
+        assertFalse(FileUtils.contentEquals(report, otherReport));
+        assertArrayEquals(workload.lineHits(59), same.lineHits(59));
+        assertEquals(workload.queryDiffsResponse(DIFF_ID, 5, 10), same.queryDiffsResponse(DIFF_ID, 5, 10));
+    }
+
+    @Test
+    public void testCoverageFormatsAgree() throws IOException {
+        SyntheticWorkload workload = new SyntheticWorkload(42, 120, 100);
+        Set<String> changedFiles = workload.changedFiles(10);
+
+        // Clover and JaCoCo only tell whether a line was covered, not how many times
+        Map<String, String> expected = null;
+        for (SyntheticWorkload.CoverageFormat format : SyntheticWorkload.CoverageFormat.values()) {
+            File report = tmp.newFile(format + ".xml");
+            workload.writeCoverage(format, report);
+            CoverageProvider provider = new XmlCoverageProvider(Collections.singleton(report), changedFiles);
+
+            Map<String, String> coverage = CoverageConverter.convert(provider.getFileCoverage());
+            assertEquals(format.toString(), changedFiles, coverage.keySet());
+            if (expected == null) {
+                expected = coverage;
+            }
+            assertEquals(format.toString(), expected, coverage);
+            assertEquals(format.toString(), workload.getLinesCovered(), provider.getMetrics().getLinesCovered(),
+                    0.001f);
+        }
+    }
+
+    @Test
+    public void testLint() throws IOException {
+        SyntheticWorkload workload = new SyntheticWorkload(42, 20, 100);
+        File lint = tmp.newFile();
+        workload.writeLint(lint, 500);
+
+        List<String> lines = FileUtils.readLines(lint, StandardCharsets.UTF_8);
+        assertEquals(500, lines.size());
+        for (String line : lines) {
+            JSONObject json = LintResult.fromJsonObject(JSONObject.fromObject(line)).toHarbormaster();
+            assertTrue(json.getString("path").startsWith(SyntheticWorkload.SOURCE_ROOT));
+        }
+    }
+
+    @Test
+    public void testJUnit() throws IOException {
+        SyntheticWorkload workload = new SyntheticWorkload(42, 20, 100);
+        File junit = tmp.newFile("junit.xml");
+        workload.writeJUnit(junit, 1000);
+
+        TestResult result = new TestResult();
+        result.parse(junit);
+        assertEquals(1000, result.getTotalCount());
+        assertTrue(result.getFailCount() > 0);
+
+        UnitResults unitResults = new JUnitTestProvider().convertJUnit(result);
+        assertEquals(1000, unitResults.getResults().size());
+    }
+
+    @Test
+    public void testQueryDiffsResponse() {
+        SyntheticWorkload workload = new SyntheticWorkload(42, 200, 100);
+        JSONObject response = workload.queryDiffsResponse(DIFF_ID, 25, 40);
+
+        Differential diff = new Differential(response.getJSONObject("result").getJSONObject(DIFF_ID));
+        assertEquals(workload.changedFiles(25), diff.getChangedFiles());
+        assertEquals("synthetic", diff.getBranch());
+    }
+}
@@ -0,0 +1,117 @@
+// Copyright (c) 2015 Uber Technologies, Inc.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.uber.jenkins.phabricator.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskGraphTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDependenciesRunFirst() throws InterruptedException {
+        List<String> order = new CopyOnWriteArrayList<String>();
+        new TaskGraph(executor)
+                .add("a", () -> order.add("a"))
+                .add("b", () -> order.add("b"), "a")
+                .add("c", () -> order.add("c"), "b")
+                .await();
+
+        assertEquals(3, order.size());
+        assertEquals("a", order.get(0));
+        assertEquals("b", order.get(1));
+        assertEquals("c", order.get(2));
+    }
+
+    @Test
+    public void testIndependentStagesRunTogether() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(2);
+        Runnable stage = () -> {
+            started.countDown();
+            try {
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        new TaskGraph(executor)
+                .add("a", stage)
+                .add("b", stage)
+                .await();
+
+        assertEquals(0, started.getCount());
+    }
+
+    @Test
+    public void testFailureSkipsDependents() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        AtomicBoolean independentRan = new AtomicBoolean();
+        TaskGraph graph = new TaskGraph(executor)
+                .add("a", () -> {
+                    throw new IllegalStateException("broken");
+                })
+                .add("b", () -> ran.set(true), "a")
+                .add("c", () -> independentRan.set(true));
+        try {
+            graph.await();
+            fail("Expected the failure to be rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertFalse(ran.get());
+        assertTrue(independentRan.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDependency() {
+        new TaskGraph(executor).add("a", () -> { }, "b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateStage() {
+        new TaskGraph(executor).add("a", () -> { }).add("a", () -> { });
+    }
+}